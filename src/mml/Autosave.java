@@ -17,20 +17,27 @@
  */
 package mml;
 
+import mml.speller.LexiconBuilder;
+import mml.handler.scratch.ScratchTier;
+
 /**
  * Maintain a constant vigil waiting for files to appear in scratch, then 
  * writing them out permanently to the proper collections after a certain time.
  * @author desmond
  */
 public class Autosave {
-    /** when reaping in progress don't accept new files to scratch */
-    public static boolean inProgress;
-    /** when scratch being written to don't do any reaping */
-    public static boolean lock;
+    static boolean started;
     /** Set up reaping */
-    static 
+    public static synchronized void start()
     {
-        Reaper reaper = new Reaper();
-        reaper.start();
+        if ( !started )
+        {
+            // write out saves left over from the last run
+            ScratchTier.recover();
+            Reaper reaper = new Reaper();
+            reaper.start();
+            LexiconBuilder.schedule();
+            started = true;
+        }
     }
 }
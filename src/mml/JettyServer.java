@@ -32,6 +32,7 @@ import calliope.core.database.Connector;
 import calliope.core.Utils;
 import mml.handler.*;
 import mml.exception.*;
+import mml.speller.SpellerPool;
 
 /**
  * This launches the Jetty service
@@ -129,6 +130,10 @@ public class JettyServer extends AbstractHandler
                             MMLWebApp.repository = Repository.valueOf(args[i+1]);
                         else if ( args[i].charAt(1) == 'W' )
                             MMLWebApp.webRoot = args[i+1];
+                        else if ( args[i].charAt(1) == 's' )
+                            SpellerPool.backend = args[i+1];
+                        else if ( args[i].charAt(1) == 'D' )
+                            SpellerPool.dictionaries = args[i+1];
                         else
                             sane = false;
                     } 
@@ -142,7 +147,7 @@ public class JettyServer extends AbstractHandler
         String password, String host, String dbName, int dbPort, 
         int wsPort, String webRoot */
             Connector.init( repository, MMLWebApp.user, 
-                MMLWebApp.password, MMLWebApp.host, "calliope", 
+                MMLWebApp.password, MMLWebApp.host, MMLWebApp.DB_NAME, 
                 MMLWebApp.dbPort, MMLWebApp.wsPort, MMLWebApp.webRoot );
         }
         catch ( Exception e )
@@ -166,7 +171,8 @@ public class JettyServer extends AbstractHandler
      */
     private static void usage()
     {
-        System.out.println( "java -jar tilt2.jar [-h host] [-d db-port] " );
+        System.out.println( "java -jar tilt2.jar [-h host] [-d db-port] "
+            +"[-s aspell|mapped] [-D dictionary-dir]" );
     }
     /**
      * @param args the command line arguments
@@ -34,8 +34,8 @@ public class JettyServerThread extends Thread
             Server server = new Server(MMLWebApp.wsPort);
             Connector[] connectors = server.getConnectors();
             connectors[0].setHost(MMLWebApp.host);
-            // initialise autosave by forcing class to load
-            Autosave.inProgress = false;
+            // initialise autosave
+            Autosave.start();
             server.setHandler(new JettyServer());
             System.out.println("starting...");
             server.start();
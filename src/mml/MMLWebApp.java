@@ -34,7 +34,10 @@ import mml.handler.MMLHandler;
 import mml.handler.MMLDeleteHandler;
 import mml.handler.get.MMLGetHandler;
 import mml.handler.post.MMLPostHandler;
+import mml.handler.post.SaveQueue;
+import mml.handler.scratch.ScratchTier;
 import mml.exception.MMLException;
+import mml.speller.SpellerPool;
 
 /**
  *
@@ -42,6 +45,8 @@ import mml.exception.MMLException;
  */
 public class MMLWebApp extends HttpServlet
 {
+    /** the database name given to Connector.init */
+    public static final String DB_NAME = "calliope";
     static String host = "localhost";
     static String user ="admin";
     static String password = "jabberw0cky";
@@ -116,9 +121,18 @@ public class MMLWebApp extends HttpServlet
                         repository = getRepository(value,Repository.MONGO);
                     else if ( param.equals("host") )
                         host = value;
+                    else if ( param.equals("speller") )
+                        SpellerPool.backend = value;
+                    else if ( param.equals("dictionaries") )
+                        SpellerPool.dictionaries = value;
+                    else if ( param.equals("debounce") )
+                        SaveQueue.debounce = getInteger(value,0);
+                    else if ( param.equals("journal") )
+                        ScratchTier.journal = value;
                 }
                 Connector.init( repository, user, 
-                    password, host, "calliope", dbPort, wsPort, webRoot );
+                    password, host, DB_NAME, dbPort, wsPort, webRoot );
+                Autosave.start();
             }
             target = Utils.pop( target );
             MMLHandler handler;
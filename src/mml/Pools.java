@@ -0,0 +1,108 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import mml.exception.MMLException;
+
+/**
+ * Shared thread pools for work done on behalf of a request
+ * @author desmond
+ */
+public class Pools
+{
+    /** pool for blocking database fetches: threads mostly wait */
+    public static final ExecutorService IO =
+        Executors.newCachedThreadPool(new NamedFactory("mml-io"));
+    /** pool for conversion work: one thread per core */
+    public static final ExecutorService CPU =
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new NamedFactory("mml-cpu"));
+    /**
+     * Make daemon threads so the pools never keep the VM alive
+     */
+    static class NamedFactory implements ThreadFactory
+    {
+        String prefix;
+        AtomicInteger count;
+        NamedFactory( String prefix )
+        {
+            this.prefix = prefix;
+            this.count = new AtomicInteger();
+        }
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, prefix+"-"+count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+    /**
+     * Cancel tasks whose results are no longer wanted because one of 
+     * their siblings failed. Finished tasks are unaffected.
+     * @param futures the futures of the tasks
+     */
+    public static void cancel( Future<?>... futures )
+    {
+        for ( Future<?> f : futures )
+            f.cancel( true );
+    }
+    /**
+     * Cancel a list of tasks whose results are no longer wanted
+     * @param futures the futures of the tasks
+     */
+    public static void cancel( Iterable<? extends Future<?>> futures )
+    {
+        for ( Future<?> f : futures )
+            f.cancel( true );
+    }
+    /**
+     * Wait for a submitted task and unwrap any exception it threw
+     * @param f the future of the task
+     * @return its result
+     * @throws MMLException if the task failed or we were interrupted
+     */
+    public static <T> T join( Future<T> f ) throws MMLException
+    {
+        try
+        {
+            return f.get();
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof MMLException )
+                throw (MMLException)cause;
+            else if ( cause instanceof Exception )
+                throw new MMLException( (Exception)cause );
+            else
+                throw new MMLException( e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new MMLException( e );
+        }
+    }
+}
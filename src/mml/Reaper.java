@@ -25,6 +25,8 @@ import java.util.HashMap;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.ArrayList;
+import mml.handler.scratch.Revisions;
+import mml.handler.scratch.ScratchStore;
 import mml.handler.scratch.ScratchVersion;
 import mml.handler.scratch.ScratchVersionSet;
 /**
@@ -68,26 +70,20 @@ public class Reaper extends Thread
             // do this while the thread runs
             while ( true )
             {
-                if ( Autosave.inProgress )
-                {
-                    Thread.sleep(60000);
-                    continue;
-                }
-                // 1. examine scratch collection to see if it contains any files. 
-                // or if files are being written elsewhere
-                // If there are no files or we are locked, sleep for 1 minute
-                String[] ids = conn.listCollectionByKey(Database.SCRATCH,JSONKeys._ID);
-                ArrayList<String> dirty = new ArrayList<String>();
-                if ( ids.length==0 )
+                // 1. ask the scratch collection for the headers of 
+                // records not yet merged or old enough to prune
+                // If there are none, sleep for 1 minute
+                ArrayList<ScratchVersion> found = ScratchStore.scan();
+                ArrayList<ScratchVersion> dirty = new ArrayList<ScratchVersion>();
+                if ( found.isEmpty() )
                 {
                     Thread.sleep(60000);
                     //System.out.println("Reper sleeping 1 minute");
                 }
-                else if ( !Autosave.inProgress )
+                else
                 {
-                    // stop simultaneous saves
-
-                    Autosave.inProgress = true;
+                    // saves go on meanwhile: records are only changed 
+                    // below if their revisions haven't moved on
                     //System.out.println("Commenced autosave");
                     // prepare map of documents to be saved
                     // keyed on docid
@@ -95,27 +91,42 @@ public class Reaper extends Thread
                         new HashMap<String,ScratchVersion[]>();
                     //System.out.println("Found "+versions+" versions in scratch");
                     // build versions hash table
-                    for ( int i=0;i<ids.length;i++ )
+                    for ( ScratchVersion header : found )
                     {
-                        String jDoc = conn.getFromDbByField(Database.SCRATCH,
-                            ids[i],JSONKeys._ID);
-                        if ( jDoc != null )
+                        String id = header.getId();
+                        if ( !header.dirty )
                         {
-                            ScratchVersion sv = ScratchVersion.fromJSON(jDoc);
-                            if ( !sv.dirty )
+                            // prune old resources
+                            if ( header.isOld() )
                             {
-                                // prune old resources
-                                if ( sv.isOld() )
+                                Revisions.Slot slot = Revisions.lock(
+                                    header.getDbase(), header.getDocid(), 
+                                    header.getVersion() );
+                                try
                                 {
-                                    conn.removeFromDbByField(Database.SCRATCH,
-                                        JSONKeys._ID, ids[i]);
-                                    //System.out.println("removing old resources");
+                                    if ( Revisions.current(slot) 
+                                        == header.getRev() )
+                                    {
+                                        conn.removeFromDbByField(
+                                            Database.SCRATCH,
+                                            JSONKeys._ID, id);
+                                        Revisions.set( slot, -1 );
+                                    }
                                 }
-                                // ignore already saved resources
-                                continue;
+                                finally
+                                {
+                                    Revisions.unlock( slot );
+                                }
+                                //System.out.println("removing old resources");
                             }
-                            else
-                                dirty.add(ids[i]);
+                            // ignore already saved resources
+                            continue;
+                        }
+                        // only now read the layers
+                        ScratchVersion sv = ScratchStore.getById(id);
+                        if ( sv != null && sv.dirty )
+                        {
+                            dirty.add(sv);
                             // records unique for cc-default, cc-pages and cortex
                             // but not for versions
                             String docid = sv.getDocid();
@@ -147,7 +158,13 @@ public class Reaper extends Thread
                         String docid = svs.getDocid();
                         String dbase = svs.getDbase();  
                         String jDoc = conn.getFromDb(dbase,docid);
-                        if ( jDoc != null )
+                        if ( jDoc != null 
+                            && ScratchVersionSet.holds(jDoc,svs.getVersions()) )
+                        {
+                            // nothing changed: don't merge it all again
+                            System.out.println("Resource "+docid+" unchanged");
+                        }
+                        else if ( jDoc != null )
                         {
                             ScratchVersionSet dbaseSet = new ScratchVersionSet(jDoc,dbase);
                             dbaseSet.upsert( svs );
@@ -161,20 +178,20 @@ public class Reaper extends Thread
                             System.out.println("Put resource to database not already there");
                         }
                     }
-                    // reset dirty flag on saved scratch resources
-                    for ( int i=0;i<dirty.size();i++ )
-                    {
-                        conn.updateByField( Database.SCRATCH, JSONKeys._ID, 
-                            dirty.get(i), "dirty", false );
-                    }
-                    // finished! reset flag
-                    Autosave.inProgress = false;
+                    // reset dirty flag on saved scratch resources, 
+                    // unless they were saved again while we merged them
+                    int cleaned = ScratchStore.clean( dirty );
+                    if ( cleaned < dirty.size() )
+                        System.out.println((dirty.size()-cleaned)
+                            +" record(s) saved again during merge");
+                    // only old records still being written: wait for them
+                    if ( dirty.isEmpty() )
+                        Thread.sleep(60000);
                 }
             }
         }
         catch ( Exception e )
         {
-            Autosave.inProgress = false;
             System.out.println(e.getMessage());
             System.out.println("relaunching reaper");
             Reaper reaper = new Reaper();
@@ -27,6 +27,9 @@ public class Params
     public static String DOC_ID = "DOC_ID";
     public static String ENCODING="encoding";
     public static String HTML="html";
+    public static String MML="mml";
+    public static String BLOCKS="blocks";
+    public static String BASE="base";
     public static String DIALECT = "dialect";
     public static String AUTHOR = "author";
     public static String TITLE = "title"; 
@@ -37,4 +40,6 @@ public class Params
     public static String DESCRIPTION = "description";
     public static String ANNOTATIONS = "annotations";
     public static String PAGEREFS = "pagerefs";
+    public static String LAYER = "layer";
+    public static String REV = "_rev";
 }
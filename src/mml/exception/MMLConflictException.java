@@ -0,0 +1,47 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.exception;
+
+/**
+ * Thrown when a save was based on a revision that has since been replaced
+ * @author desmond
+ */
+public class MMLConflictException extends MMLException
+{
+    private static final long serialVersionUID = 1L;
+    /** the revision now stored */
+    long rev;
+    /**
+     * Create a conflict exception
+     * @param message the message it is to bear
+     * @param rev the revision now stored
+     */
+    public MMLConflictException( String message, long rev )
+    {
+        super( message );
+        this.rev = rev;
+    }
+    /**
+     * Get the revision that the save should have been based on
+     * @return the current revision
+     */
+    public long getRev()
+    {
+        return rev;
+    }
+}
@@ -59,7 +59,8 @@ abstract public class MMLHandler
     {
         String jDoc = conn.getFromDb(coll,docId);
         JSONObject jObj = (JSONObject)JSONValue.parse( jDoc );
-        if ( isAnnotation(jObj) )
+        // scratch versions hold binary layers and aren't JSON
+        if ( jObj != null && isAnnotation(jObj) )
         {
             if ( jObj.containsKey(JSONKeys.VERSIONS) )
             {
@@ -23,18 +23,21 @@ import java.util.Iterator;
 import java.util.Set;
 import java.util.Stack;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import calliope.core.constants.Database;
 import mml.constants.Params;
-import calliope.core.database.Connection;
-import calliope.core.database.Connector;
+import mml.Pools;
 import calliope.core.constants.JSONKeys;
 import mml.exception.*;
+import mml.handler.scratch.Revisions;
 import mml.handler.scratch.Scratch;
 import mml.handler.scratch.ScratchVersion;
 import mml.handler.scratch.ScratchLayer;
-import calliope.core.Utils;
+import mml.handler.json.Dialect;
 import mml.handler.json.DialectKeys;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -566,6 +569,37 @@ public class MMLGetMMLHandler extends MMLGetHandler
             lineFormats.add(lfProp);
         }
     }
+    /**
+     * Start fetching a scratch version in the background
+     * @param docid the docid of the resource
+     * @param version the version or null for the default
+     * @param dbase the database it belongs to
+     * @return a future for the ScratchVersion (which may be null)
+     */
+    private static Future<ScratchVersion> fetchVersion( final String docid, 
+        final String version, final String dbase )
+    {
+        return Pools.IO.submit( new Callable<ScratchVersion>() {
+            public ScratchVersion call() throws Exception
+            {
+                return Scratch.getVersion( docid, version, dbase );
+            }
+        });
+    }
+    /**
+     * Refuse a request the client got wrong
+     * @param response the response to write to
+     * @param status the HTTP status to send
+     * @param message why it was refused
+     * @throws IOException 
+     */
+    private static void reject( HttpServletResponse response, int status, 
+        String message ) throws IOException
+    {
+        response.setStatus( status );
+        response.setContentType("text/plain");
+        response.getWriter().write( message );
+    }
     /**
      * Handle the request
      * @param request the request
@@ -582,21 +616,90 @@ public class MMLGetMMLHandler extends MMLGetHandler
             if ( docid == null )
                 throw new Exception("You must specify a docid parameter");
             version1 = request.getParameter(Params.VERSION1);
+            // the four lookups are independent: overlap them
+            Future<ScratchVersion> fCortex = fetchVersion( docid, 
+                version1, Database.CORTEX );
+            Future<ScratchVersion> fDefault = fetchVersion( docid+"/default", 
+                version1, Database.CORCODE );
+            Future<ScratchVersion> fPages = fetchVersion( docid+"/pages", 
+                version1, Database.CORCODE );
+            final String shortID = shortenDocID(docid);
+            final String v1 = version1;
+            Future<String> fDialect = Pools.IO.submit( new Callable<String>() {
+                public String call() throws Exception
+                {
+                    return Dialect.getDialect( shortID, v1 );
+                }
+            });
             ScratchVersion cortex, corcodeDefault,corcodePages;
-            cortex = Scratch.getVersion( docid, version1, Database.CORTEX );
-            corcodeDefault = Scratch.getVersion( docid+"/default", version1, Database.CORCODE );
-            corcodePages = Scratch.getVersion( docid+"/pages", version1, Database.CORCODE );
-            String shortID = shortenDocID(docid);
-            String dialectStr = getDialect( shortID, version1 );
+            String dialectStr;
+            try
+            {
+                cortex = Pools.join( fCortex );
+                corcodeDefault = Pools.join( fDefault );
+                corcodePages = Pools.join( fPages );
+                dialectStr = Pools.join( fDialect );
+            }
+            catch ( MMLException e )
+            {
+                // the request has failed: don't leave the rest running
+                Pools.cancel( fCortex, fDefault, fPages, fDialect );
+                throw e;
+            }
+            if ( cortex == null || corcodeDefault == null )
+            {
+                reject( response, HttpServletResponse.SC_NOT_FOUND,
+                    "No "+((cortex==null)?"cortex":"corcode")+" for "+docid );
+                return;
+            }
             this.dialect = (JSONObject)JSONValue.parse(dialectStr);
             globals = new HashMap<Character,String>();
             buildLineFormats();
             invertDialect();
             //printInvertIndex();
-            int[] layers = cortex.getLayerNumbers();
-            Arrays.sort(layers);
+            int[] layers;
+            String layerName = request.getParameter(Params.LAYER);
+            if ( layerName != null && layerName.length()>0 )
+            {
+                // just the one layer: leave the others undecoded
+                int num;
+                try
+                {
+                    num = ScratchVersion.layerNumber(layerName);
+                }
+                catch ( NumberFormatException e )
+                {
+                    reject( response, HttpServletResponse.SC_BAD_REQUEST,
+                        "Bad layer "+layerName );
+                    return;
+                }
+                if ( !cortex.containsLayer(num) )
+                {
+                    reject( response, HttpServletResponse.SC_NOT_FOUND,
+                        "Layer "+layerName+" not found" );
+                    return;
+                }
+                layers = new int[1];
+                layers[0] = num;
+            }
+            else
+            {
+                layers = cortex.getLayerNumbers();
+                Arrays.sort(layers);
+            }
             JSONObject jObj = new JSONObject();
             jObj.put( JSONKeys.VERSION1, version1 );
+            // the revision to send back when saving, as layers or HTML. 
+            // Both kinds of save give their records a revision above it, 
+            // and refuse it if any of them has been saved since.
+            long rev = cortex.getRev();
+            if ( corcodeDefault != null )
+                rev = Math.max( rev, corcodeDefault.getRev() );
+            if ( corcodePages != null )
+                rev = Math.max( rev, corcodePages.getRev() );
+            rev = Math.max( rev, Revisions.get(docid) );
+            rev = Math.max( rev, Revisions.get(docid+"/default") );
+            jObj.put( JSONKeys.REV, rev );
             JSONArray jArr = new JSONArray();
             jObj.put(JSONKeys.LAYERS,jArr);
             for ( int i=0;i<layers.length;i++ )
@@ -636,48 +739,4 @@ public class MMLGetMMLHandler extends MMLGetHandler
         }
         return true;
     }
-    /**
-     * Get a dialect
-     * @param docid the docid of the dialect
-     * @param version1 the version id that may specify a dialect variant
-     * @return an Element (div) containing the content
-     */
-    public static String getDialect( String docid, String version1 ) 
-        throws MMLTestException
-    {
-        try
-        {
-            Connection conn = Connector.getConnection();
-            String path = docid;
-            if ( version1 != null && !version1.equals("/base") )
-                path += version1;
-            String dialect = conn.getFromDb(Database.DIALECTS,path);
-            if ( dialect != null )
-            {
-                JSONObject jObj = (JSONObject)JSONValue.parse(dialect);
-                dialect = (String)jObj.get(JSONKeys.BODY);
-            }
-            else
-            {
-                while ( path.length()>0 && dialect == null )
-                {
-                    path = Utils.chomp( path );
-                    String bson = conn.getFromDb(Database.DIALECTS,path);
-                    if ( bson != null )
-                    {
-                        JSONObject jObj = (JSONObject)JSONValue.parse(bson);
-                        dialect = (String)jObj.get(JSONKeys.BODY);
-                    }
-                }
-            }
-            if ( dialect == null )
-                throw new MMLException("No dialect for "+path+" found");
-            else
-                return dialect;
-        }
-        catch ( Exception e )
-        {
-            throw new MMLTestException(e);
-        }
-    }
 }
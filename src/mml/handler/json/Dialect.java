@@ -21,10 +21,16 @@ package mml.handler.json;
 import org.json.simple.*;
 import java.util.Set;
 import java.util.Iterator;
+import calliope.core.Utils;
+import calliope.core.constants.Database;
 import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connection;
+import calliope.core.database.Connector;
+import mml.exception.MMLException;
+import mml.exception.MMLTestException;
 
 /**
- * Dialect class just exists to compare two dialect files
+ * Dialect class exists to fetch dialect files and compare two of them
  * @author desmond
  */
 public class Dialect {
@@ -148,6 +154,50 @@ public class Dialect {
         wrap.put(JSONKeys.DOCID, docid );
         return wrap;
     }
+    /**
+     * Get a dialect
+     * @param docid the docid of the dialect
+     * @param version1 the version id that may specify a dialect variant
+     * @return an Element (div) containing the content
+     */
+    public static String getDialect( String docid, String version1 ) 
+        throws MMLTestException
+    {
+        try
+        {
+            Connection conn = Connector.getConnection();
+            String path = docid;
+            if ( version1 != null && !version1.equals("/base") )
+                path += version1;
+            String dialect = conn.getFromDb(Database.DIALECTS,path);
+            if ( dialect != null )
+            {
+                JSONObject jObj = (JSONObject)org.json.simple.JSONValue.parse(dialect);
+                dialect = (String)jObj.get(JSONKeys.BODY);
+            }
+            else
+            {
+                while ( path.length()>0 && dialect == null )
+                {
+                    path = Utils.chomp( path );
+                    String bson = conn.getFromDb(Database.DIALECTS,path);
+                    if ( bson != null )
+                    {
+                        JSONObject jObj = (JSONObject)org.json.simple.JSONValue.parse(bson);
+                        dialect = (String)jObj.get(JSONKeys.BODY);
+                    }
+                }
+            }
+            if ( dialect == null )
+                throw new MMLException("No dialect for "+path+" found");
+            else
+                return dialect;
+        }
+        catch ( Exception e )
+        {
+            throw new MMLTestException(e);
+        }
+    }
     public static void main(String[] args )
     {
         JSONObject o1 = (JSONObject) org.json.simple.JSONValue.parse(dia1);
@@ -22,63 +22,347 @@ import mml.constants.Formats;
 import calliope.core.exception.JSONException;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import org.json.simple.*;
 /**
- *
+ * A STIL document built up range by range. Ranges are kept in parallel 
+ * int arrays with their names in a symbol table, and the JSON is written 
+ * straight into a char buffer when done.
  * @author desmond
  */
-public class STILDocument extends JSONObject
+public class STILDocument
 {
-    ArrayList<JSONObject> ranges;
-    HashMap<Range,JSONObject> map;
+    String style;
+    /** absolute offsets of the ranges */
+    int[] offsets;
+    /** lengths of the ranges */
+    int[] lens;
+    /** indices into names */
+    int[] nameIds;
+    /** ranges marked as removed */
+    boolean[] removed;
+    /** number of ranges added so far */
+    int size;
+    /** distinct range names */
+    ArrayList<String> names;
+    /** name to its index in names */
+    HashMap<String,Integer> symbols;
+    /** JSON annotations of the few ranges that have them, by index */
+    HashMap<Integer,String> annotations;
     /** array of actual ranges with absolute offsets */
     ArrayList<Range> rangeArray;
-    int lastOffset;
     
     public STILDocument( String style )
     {
-        super();
-        put( JSONKeys.STYLE, style );
-        ranges = new ArrayList<JSONObject>();
-        put( JSONKeys.RANGES, ranges );
-        put( JSONKeys.FORMAT, Formats.STIL );
-        lastOffset = 0;
-        map = new HashMap<Range,JSONObject>();
+        this.style = style;
+        offsets = new int[64];
+        lens = new int[64];
+        nameIds = new int[64];
+        removed = new boolean[64];
+        names = new ArrayList<String>();
+        symbols = new HashMap<String,Integer>();
+    }
+    /**
+     * Get the index of a name, adding it if new
+     * @param name the range name
+     * @return its index in names
+     */
+    private int symbol( String name )
+    {
+        Integer id = symbols.get( name );
+        if ( id == null )
+        {
+            id = names.size();
+            names.add( name );
+            symbols.put( name, id );
+        }
+        return id;
     }
     /**
      * Add a range to the STIL Document. Must be added in sequence
      * @param r the actual range to add (NOT relative)
-     * @return the added document
-     */
-    public JSONObject add( Range r ) throws JSONException
-    {
-        JSONObject doc = new JSONObject();
-        int reloff = r.offset - lastOffset;
-        lastOffset = r.offset;
-        doc.put( JSONKeys.NAME, r.name );
-        doc.put( JSONKeys.RELOFF, reloff );
-        doc.put( JSONKeys.LEN, r.len );
-        if ( r.removed )
-            doc.put( JSONKeys.REMOVED, true );
+     * @return the index of the added range
+     */
+    public int add( Range r ) throws JSONException
+    {
+        if ( size == offsets.length )
+        {
+            int newLen = size*2;
+            offsets = Arrays.copyOf( offsets, newLen );
+            lens = Arrays.copyOf( lens, newLen );
+            nameIds = Arrays.copyOf( nameIds, newLen );
+            removed = Arrays.copyOf( removed, newLen );
+        }
+        offsets[size] = r.offset;
+        lens[size] = r.len;
+        nameIds[size] = symbol( r.name );
+        removed[size] = r.removed;
         if ( r.annotations != null && r.annotations.size() > 0 )
         {
-            ArrayList<Object> attrs = new ArrayList<Object>();
+            JSONArray attrs = new JSONArray();
             for ( int i=0;i<r.annotations.size();i++ )
             {
                 Annotation a = r.annotations.get( i );
                 attrs.add( a.toJSONObject() );
             }
-            doc.put( JSONKeys.ANNOTATIONS, attrs );
+            if ( annotations == null )
+                annotations = new HashMap<Integer,String>();
+            annotations.put( size, attrs.toJSONString() );
         }
-        ranges.add( doc );
-        // remember for later update
-        map.put( r, doc );
-        return doc;
+        return size++;
     }
-    public void updateLen( Range r, int len )
+    /**
+     * Add all the ranges of another document, moving them along
+     * @param other a document of the same style built separately
+     * @param shift the amount to add to each of its offsets
+     * @return the index here of other's first range
+     */
+    public int append( STILDocument other, int shift )
+    {
+        int base = size;
+        for ( int i=0;i<other.size;i++ )
+        {
+            if ( size == offsets.length )
+            {
+                int newLen = size*2;
+                offsets = Arrays.copyOf( offsets, newLen );
+                lens = Arrays.copyOf( lens, newLen );
+                nameIds = Arrays.copyOf( nameIds, newLen );
+                removed = Arrays.copyOf( removed, newLen );
+            }
+            offsets[size] = other.offsets[i]+shift;
+            lens[size] = other.lens[i];
+            nameIds[size] = symbol( other.names.get(other.nameIds[i]) );
+            removed[size] = other.removed[i];
+            if ( other.annotations != null 
+                && other.annotations.containsKey(i) )
+            {
+                if ( annotations == null )
+                    annotations = new HashMap<Integer,String>();
+                annotations.put( size, other.annotations.get(i) );
+            }
+            size++;
+        }
+        return base;
+    }
+    /**
+     * Set the length of a range already added
+     * @param index the index returned by add
+     * @param len its final length
+     */
+    public void updateLen( int index, int len )
+    {
+        lens[index] = len;
+    }
+    /**
+     * Rename a range already added
+     * @param index the index returned by add
+     * @param name its new name
+     */
+    public void updateName( int index, String name )
+    {
+        nameIds[index] = symbol( name );
+    }
+    /**
+     * Get the absolute offset of a range already added
+     * @param index the index returned by add
+     * @return its offset in the text
+     */
+    public int getOffset( int index )
+    {
+        return offsets[index];
+    }
+    /**
+     * Get the length of a range already added
+     * @param index the index returned by add
+     * @return its length
+     */
+    public int getLen( int index )
+    {
+        return lens[index];
+    }
+    /**
+     * Get the name of the default style
+     * @return the style name
+     */
+    public String getStyle()
+    {
+        return style;
+    }
+    /**
+     * Get the number of ranges
+     * @return the number added so far
+     */
+    public int size()
+    {
+        return size;
+    }
+    /**
+     * Quote a string for JSON
+     * @param str the raw string
+     * @return the string in quotes with any specials escaped
+     */
+    private static String quote( String str )
+    {
+        StringBuilder buf = new StringBuilder( str.length()+2 );
+        buf.append('"');
+        for ( int i=0;i<str.length();i++ )
+        {
+            char c = str.charAt(i);
+            switch ( c )
+            {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if ( c < ' ' )
+                    {
+                        String hex = Integer.toHexString( c );
+                        buf.append("\\u");
+                        for ( int j=hex.length();j<4;j++ )
+                            buf.append('0');
+                        buf.append( hex );
+                    }
+                    else
+                        buf.append( c );
+                    break;
+            }
+        }
+        buf.append('"');
+        return buf.toString();
+    }
+    /**
+     * Count the decimal digits of a number
+     * @param n the number
+     * @return its printed length
+     */
+    private static int digits( int n )
+    {
+        int len = (n<0)?2:1;
+        n = Math.abs(n);
+        while ( n >= 10 )
+        {
+            n /= 10;
+            len++;
+        }
+        return len;
+    }
+    /**
+     * Copy a string into the buffer
+     * @param buf the buffer, big enough
+     * @param pos where to write
+     * @param str the string
+     * @return the position after it
+     */
+    private static int put( char[] buf, int pos, String str )
+    {
+        str.getChars( 0, str.length(), buf, pos );
+        return pos+str.length();
+    }
+    /**
+     * Write a number into the buffer
+     * @param buf the buffer, big enough
+     * @param pos where to write
+     * @param n the number
+     * @return the position after it
+     */
+    private static int put( char[] buf, int pos, int n )
+    {
+        int end = pos+digits(n);
+        int i = end;
+        if ( n < 0 )
+        {
+            buf[pos] = '-';
+            n = -n;
+        }
+        do
+        {
+            buf[--i] = (char)('0'+n%10);
+            n /= 10;
+        }
+        while ( n > 0 );
+        return end;
+    }
+    /**
+     * Write out the document as STIL JSON. The length is worked out 
+     * first so the buffer is filled once with no copying.
+     * @return the JSON as a char array
+     */
+    public char[] toCharArray()
+    {
+        // quote each name once: they recur many times
+        String[] quoted = new String[names.size()];
+        for ( int i=0;i<quoted.length;i++ )
+            quoted[i] = quote( names.get(i) );
+        String head = "{\""+JSONKeys.STYLE+"\":"+quote(style)
+            +",\""+JSONKeys.FORMAT+"\":"+quote(Formats.STIL)
+            +",\""+JSONKeys.RANGES+"\":[";
+        String nameKey = "{\""+JSONKeys.NAME+"\":";
+        String reloffKey = ",\""+JSONKeys.RELOFF+"\":";
+        String lenKey = ",\""+JSONKeys.LEN+"\":";
+        String removedKey = ",\""+JSONKeys.REMOVED+"\":true";
+        String annotationsKey = ",\""+JSONKeys.ANNOTATIONS+"\":";
+        int total = head.length()+2;
+        int lastOffset = 0;
+        for ( int i=0;i<size;i++ )
+        {
+            total += nameKey.length()+quoted[nameIds[i]].length()
+                +reloffKey.length()+digits(offsets[i]-lastOffset)
+                +lenKey.length()+digits(lens[i])+1;
+            lastOffset = offsets[i];
+            if ( i > 0 )
+                total++;
+            if ( removed[i] )
+                total += removedKey.length();
+            if ( annotations != null && annotations.containsKey(i) )
+                total += annotationsKey.length()+annotations.get(i).length();
+        }
+        char[] buf = new char[total];
+        int pos = put( buf, 0, head );
+        lastOffset = 0;
+        for ( int i=0;i<size;i++ )
+        {
+            if ( i > 0 )
+                buf[pos++] = ',';
+            pos = put( buf, pos, nameKey );
+            pos = put( buf, pos, quoted[nameIds[i]] );
+            pos = put( buf, pos, reloffKey );
+            pos = put( buf, pos, offsets[i]-lastOffset );
+            lastOffset = offsets[i];
+            pos = put( buf, pos, lenKey );
+            pos = put( buf, pos, lens[i] );
+            if ( removed[i] )
+                pos = put( buf, pos, removedKey );
+            if ( annotations != null && annotations.containsKey(i) )
+            {
+                pos = put( buf, pos, annotationsKey );
+                pos = put( buf, pos, annotations.get(i) );
+            }
+            buf[pos++] = '}';
+        }
+        buf[pos++] = ']';
+        buf[pos] = '}';
+        return buf;
+    }
+    /**
+     * Write out the document as STIL JSON
+     * @return the JSON as a string
+     */
+    public String toString()
     {
-        JSONObject doc = map.get(r);
-        doc.put(JSONKeys.LEN, len );
+        return new String( toCharArray() );
     }
     /**
      * Get the range information from a loaded document
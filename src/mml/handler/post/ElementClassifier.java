@@ -0,0 +1,104 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import mml.handler.json.DialectKeys;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A dialect compiled into lookup tables for the HTML save, so that the 
+ * walk never has to consult the dialect's JSON
+ * @author desmond
+ */
+public class ElementClassifier 
+{
+    /**
+     * What the save does with an element found in the body or a section
+     */
+    public enum Action
+    {
+        /** a div: start a section */
+        SECTION,
+        /** a p: start a paragraph */
+        PARA,
+        /** h0-h9: a paragraph named after its tag */
+        HEADING,
+        /** a span: charformat, milestone or soft-hyphen */
+        SPAN,
+        /** preformatted text */
+        PRE,
+        /** anything else */
+        OTHER
+    }
+    /** actions of the tags that are not OTHER, lowercased */
+    static HashMap<String,Action> actions;
+    static
+    {
+        actions = new HashMap<String,Action>();
+        actions.put( "div", Action.SECTION );
+        actions.put( "p", Action.PARA );
+        actions.put( "span", Action.SPAN );
+        actions.put( "pre", Action.PRE );
+        for ( char c='0';c<='9';c++ )
+            actions.put( "h"+c, Action.HEADING );
+    }
+    /** the props of the dialect's lineformats */
+    HashSet<String> lineFormats;
+    /**
+     * Compile a dialect
+     * @param dialect the dialect of the document being saved
+     */
+    public ElementClassifier( JSONObject dialect )
+    {
+        lineFormats = new HashSet<String>();
+        JSONArray lfs = (dialect==null)?null
+            :(JSONArray)dialect.get(DialectKeys.lineformats.toString());
+        if ( lfs != null )
+        {
+            for ( int i=0;i<lfs.size();i++ )
+            {
+                JSONObject lf = (JSONObject)lfs.get(i);
+                String prop = (String)lf.get("prop");
+                if ( prop != null )
+                    lineFormats.add( prop );
+            }
+        }
+    }
+    /**
+     * Decide what to do with an element
+     * @param tag its lowercased tag name
+     * @return the action to take
+     */
+    public Action classify( String tag )
+    {
+        Action a = actions.get( tag );
+        return (a==null)?Action.OTHER:a;
+    }
+    /**
+     * Is the class or tag name of a paragraph or span a lineformat?
+     * @param name the property name
+     * @return true if the dialect defines it as a lineformat
+     */
+    public boolean isLineFormat( String name )
+    {
+        return lineFormats.contains( name );
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read the decoded value of one field of a url-encoded form body as it 
+ * arrives, without holding the body or the value in memory
+ * @author desmond
+ */
+public class FormValueStream extends InputStream
+{
+    InputStream in;
+    String field;
+    /** true once we have reached the field's value */
+    boolean inValue;
+    /** true once the value has ended */
+    boolean done;
+    /**
+     * Create a stream over one field of a form
+     * @param in the raw request body
+     * @param field the name of the field wanted
+     */
+    public FormValueStream( InputStream in, String field )
+    {
+        this.in = new BufferedInputStream( in );
+        this.field = field;
+    }
+    /**
+     * Skip to the value of the field we want
+     * @return true if it was found, false at the end of the body
+     */
+    private boolean findField() throws IOException
+    {
+        StringBuilder name = new StringBuilder();
+        int c;
+        while ( (c=in.read()) != -1 )
+        {
+            if ( c == '=' )
+            {
+                if ( name.toString().equals(field) )
+                    return true;
+                // skip its value
+                while ( (c=in.read()) != -1 && c != '&' );
+                name.setLength( 0 );
+            }
+            else if ( c == '&' )
+                name.setLength( 0 );
+            else
+                name.append( (char)c );
+        }
+        return false;
+    }
+    private static int hex( int c )
+    {
+        return Character.digit( c, 16 );
+    }
+    @Override
+    public int read() throws IOException
+    {
+        if ( done )
+            return -1;
+        else if ( !inValue )
+        {
+            inValue = findField();
+            if ( !inValue )
+            {
+                done = true;
+                return -1;
+            }
+        }
+        int c = in.read();
+        if ( c == -1 || c == '&' )
+        {
+            done = true;
+            return -1;
+        }
+        else if ( c == '+' )
+            return ' ';
+        else if ( c == '%' )
+        {
+            int hi = hex( in.read() );
+            int lo = hex( in.read() );
+            if ( hi == -1 || lo == -1 )
+                throw new IOException( "Bad escape in form data" );
+            return hi*16+lo;
+        }
+        else
+            return c;
+    }
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        int i = 0;
+        int c;
+        while ( i < len && (c=read()) != -1 )
+            b[off+i++] = (byte)c;
+        return (i==0&&len>0)?-1:i;
+    }
+}
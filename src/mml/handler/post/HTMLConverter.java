@@ -0,0 +1,914 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import calliope.core.json.corcode.Range;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import mml.exception.MMLRepairException;
+import mml.handler.post.HTMLTokenizer.Token;
+import org.jsoup.helper.StringUtil;
+import org.jsoup.parser.Tag;
+
+/**
+ * Convert a stream of HTML from the editor into text, STIL and page 
+ * ranges as it is read. An explicit stack of open elements replaces the 
+ * DOM. Only spans and pre elements are held until they close, because 
+ * what they produce depends on all of their text. Well-formed tables 
+ * are opened with the tbody jsoup would add. Markup that jsoup would 
+ * repair by moving elements already converted (text or tags misplaced 
+ * in a table, badly overlapping formatting tags) raises an 
+ * MMLRepairException, so the caller can fall back on the DOM.
+ * @author desmond
+ */
+public class HTMLConverter 
+{
+    /** what an open element does with its content */
+    static final int BODY = 0;
+    static final int DIV = 1;
+    static final int PARA = 2;
+    static final int OTHER = 3;
+    static final int SPAN = 4;
+    static final int PRE = 5;
+    /** elements with no content */
+    static HashSet<String> voids;
+    /** start tags that end an open paragraph */
+    static HashSet<String> closesP;
+    /** end tags only honoured if the element is in scope */
+    static HashSet<String> blockEnds;
+    /** elements that stop the search for an unmatched end tag */
+    static HashSet<String> special;
+    /** end tags that may be left out */
+    static HashSet<String> implied;
+    /** elements that limit the scope of an end tag */
+    static HashSet<String> scopes;
+    /** formatting elements that jsoup reopens after a block closes them */
+    static HashSet<String> formatting;
+    /** start tags that need tree repairs we don't do */
+    static HashSet<String> repairs;
+    /** elements whose content may only be other table elements */
+    static HashSet<String> tableContexts;
+    /** table elements we build the way jsoup does */
+    static HashSet<String> tableParts;
+    /** elements whose content jsoup reads as text, not as HTML */
+    static HashSet<String> rawText;
+    /** start tags jsoup handles by its head rules, or as raw text, 
+     *  without reopening formatting elements */
+    static HashSet<String> noReconstruct;
+    static
+    {
+        voids = set( "area","base","basefont","bgsound","br","command",
+            "embed","hr","img","image","input","isindex","keygen","link",
+            "meta","param","source","track","wbr" );
+        blockEnds = set( "address","article","aside","blockquote",
+            "button","center","details","dir","div","dl","fieldset",
+            "figcaption","figure","footer","header","hgroup","listing",
+            "menu","nav","ol","pre","section","summary","ul","li","dd",
+            "dt","form" );
+        closesP = set( "address","article","aside","blockquote","center",
+            "details","dir","div","dl","fieldset","figcaption","figure",
+            "footer","header","hgroup","menu","nav","ol","p","section",
+            "summary","ul","h1","h2","h3","h4","h5","h6","pre","listing",
+            "form","li","dd","dt","plaintext","table","hr" );
+        special = set( "address","applet","area","article","aside","base",
+            "basefont","bgsound","blockquote","body","br","button",
+            "caption","center","col","colgroup","command","dd","details",
+            "dir","div","dl","dt","embed","fieldset","figcaption","figure",
+            "footer","form","frame","frameset","h1","h2","h3","h4","h5",
+            "h6","head","header","hgroup","hr","html","iframe","img",
+            "input","isindex","li","link","listing","marquee","menu",
+            "meta","nav","noembed","noframes","noscript","object","ol",
+            "p","param","plaintext","pre","script","section","select",
+            "style","summary","table","tbody","td","textarea","tfoot","th",
+            "thead","title","tr","ul","wbr","xmp" );
+        implied = set( "dd","dt","li","option","optgroup","p","rp","rt" );
+        scopes = set( "applet","caption","html","table","td","th",
+            "marquee","object" );
+        formatting = set( "a","b","big","code","em","font","i","nobr","s",
+            "small","strike","strong","tt","u" );
+        repairs = set( "caption","colgroup","col","select","frameset",
+            "frame","applet","marquee","object","math","svg" );
+        tableContexts = set( "table","tbody","thead","tfoot","tr" );
+        tableParts = set( "table","tbody","thead","tfoot","tr","td","th" );
+        rawText = set( "script","style","textarea","title","xmp",
+            "iframe","noembed","noframes" );
+        noReconstruct = set( "base","basefont","bgsound","command","link",
+            "meta","noframes","script","style","title","textarea","iframe",
+            "noembed" );
+    }
+    static HashSet<String> set( String... names )
+    {
+        HashSet<String> s = new HashSet<String>();
+        for ( String n : names )
+            s.add( n );
+        return s;
+    }
+    /**
+     * An element that has been opened
+     */
+    static class Element
+    {
+        String name;
+        /** the class attribute or null */
+        String cls;
+        Element parent;
+        int kind;
+        /** index of its range in stil */
+        int index;
+        int offset;
+        boolean lineFormat;
+        /** true while it is on the stack of open elements */
+        boolean onStack;
+        /** true if it was opened by an earlier chunk of the document */
+        boolean inherited;
+        /** where an inherited element ended in this chunk's text, or -1 */
+        int end = -1;
+        /** the span or pre this is inside, if any */
+        Element held;
+        /** content of a held element: Elements and Strings */
+        ArrayList<Object> children;
+        Element( String name, String cls, Element parent )
+        {
+            this.name = name;
+            this.cls = cls;
+            this.parent = parent;
+        }
+        /**
+         * Get the class the same way as jsoup's attr("class")
+         * @return the class or the empty string
+         */
+        String attr()
+        {
+            return (cls==null)?"":cls;
+        }
+    }
+    MMLPostHTMLHandler h;
+    ArrayList<Element> open;
+    /** active formatting elements, most recent last */
+    ArrayList<Element> active;
+    /** divs left open by earlier chunks, outermost first */
+    ArrayList<Element> inherited;
+    HTMLTokenizer tokens;
+    /**
+     * Create a converter that writes into a handler's text and markup
+     * @param h the handler, which has already been set up with begin()
+     */
+    HTMLConverter( MMLPostHTMLHandler h )
+    {
+        this.h = h;
+    }
+    /**
+     * Convert a fragment of HTML
+     * @param in the HTML
+     * @throws Exception 
+     */
+    public void convert( Reader in ) throws Exception
+    {
+        start( 0 );
+        feed( in );
+        finish();
+    }
+    /**
+     * Get ready to convert one chunk of a document
+     * @param divs the number of sections left open by earlier chunks
+     */
+    void start( int divs )
+    {
+        open = new ArrayList<Element>();
+        active = new ArrayList<Element>();
+        inherited = new ArrayList<Element>();
+        Element root = new Element( "html", null, null );
+        root.kind = BODY;
+        open.add( root );
+        for ( int i=0;i<divs;i++ )
+        {
+            Element e = new Element( "div", null, current() );
+            e.kind = (i==0)?DIV:OTHER;
+            e.inherited = e.onStack = true;
+            open.add( e );
+            inherited.add( e );
+        }
+    }
+    /**
+     * Convert some HTML, leaving elements still open at the end
+     * @param in the HTML
+     * @throws Exception 
+     */
+    void feed( Reader in ) throws Exception
+    {
+        tokens = new HTMLTokenizer( in );
+        Token t;
+        while ( (t=tokens.next()).type != HTMLTokenizer.EOF )
+        {
+            if ( t.type == HTMLTokenizer.START )
+                startTag( t.name, t.cls, t.selfClosing );
+            else if ( t.type == HTMLTokenizer.END )
+                endTag( t.name );
+            else
+                text( t.text );
+        }
+    }
+    /**
+     * Close everything still open at the end of the document
+     */
+    void finish() throws Exception
+    {
+        while ( open.size() > 1 )
+            pop();
+    }
+    private Element current()
+    {
+        return open.get( open.size()-1 );
+    }
+    /**
+     * Is this one of the headings the HTML5 parser treats specially?
+     * @param name the lowercased tag name
+     * @return true if it is h1-h6
+     */
+    static boolean isHeading( String name )
+    {
+        return name.length()==2 && name.charAt(0)=='h' 
+            && name.charAt(1)>='1' && name.charAt(1)<='6';
+    }
+    /**
+     * Is an element open inside the given scope?
+     * @param name the element name
+     * @param button true if a button also limits the scope
+     * @return true if it is
+     */
+    private boolean inScope( String name, boolean button )
+    {
+        for ( int i=open.size()-1;i>=0;i-- )
+        {
+            String n = open.get(i).name;
+            if ( n.equals(name) )
+                return true;
+            else if ( scopes.contains(n) || (button&&n.equals("button")) )
+                return false;
+        }
+        return false;
+    }
+    /**
+     * Is any heading open in scope?
+     * @return true if one is
+     */
+    private boolean headingInScope()
+    {
+        for ( int i=open.size()-1;i>=0;i-- )
+        {
+            String n = open.get(i).name;
+            if ( isHeading(n) )
+                return true;
+            else if ( scopes.contains(n) )
+                return false;
+        }
+        return false;
+    }
+    /**
+     * Close elements whose end tags may be left out
+     * @param except don't close this one
+     */
+    private void generateImpliedEndTags( String except ) throws Exception
+    {
+        while ( open.size() > 1 && implied.contains(current().name)
+            && !current().name.equals(except) )
+            pop();
+    }
+    /**
+     * Close elements up to and including the named one
+     * @param name the element's name
+     */
+    private void popUntil( String name ) throws Exception
+    {
+        while ( open.size() > 1 )
+        {
+            Element e = pop();
+            if ( e.name.equals(name) )
+                break;
+        }
+    }
+    /**
+     * Handle a start tag
+     * @param name its name
+     * @param cls its class or null
+     * @param selfClosing true if it ended in "/>"
+     */
+    void startTag( String name, String cls, boolean selfClosing ) 
+        throws Exception
+    {
+        if ( name.equals("html")||name.equals("body")||name.equals("head") )
+            return;
+        if ( repairs.contains(name) )
+            throw new MMLRepairException("<"+name+"> needs repair");
+        else if ( tableParts.contains(name) )
+        {
+            tableTag( name, cls );
+            return;
+        }
+        else if ( inTable() )
+            throw new MMLRepairException("<"+name+"> inside <"
+                +current().name+">");
+        if ( name.equals("image") )
+            name = "img";
+        if ( name.equals("a") && activeElement("a") != null )
+            adopt( "a" );
+        else if ( name.equals("nobr") && inScope("nobr",false) )
+            adopt( "nobr" );
+        if ( name.equals("li")||name.equals("dd")||name.equals("dt") )
+            closeListItem( name );
+        if ( closesP.contains(name) && inScope("p",true) )
+        {
+            generateImpliedEndTags( "p" );
+            popUntil( "p" );
+        }
+        if ( isHeading(name) && headingInScope() 
+            && isHeading(current().name) )
+            pop();
+        if ( !closesP.contains(name) && !isHeading(name) 
+            && !noReconstruct.contains(name) )
+            reconstruct();
+        Element e = push( name, cls );
+        if ( selfClosing || voids.contains(name) )
+            pop();
+        else if ( formatting.contains(name) )
+            active.add( e );
+    }
+    /**
+     * Is the current element one that can only hold table elements?
+     * @return true if it is
+     */
+    private boolean inTable()
+    {
+        return tableContexts.contains( current().name );
+    }
+    /**
+     * Is an element open inside the current table?
+     * @param name the element name
+     * @return true if it is
+     */
+    private boolean inTableScope( String name )
+    {
+        for ( int i=open.size()-1;i>=0;i-- )
+        {
+            String n = open.get(i).name;
+            if ( n.equals(name) )
+                return true;
+            else if ( n.equals("table")||n.equals("html") )
+                return false;
+        }
+        return false;
+    }
+    /**
+     * Open a table element, adding the tbody and tr that jsoup would 
+     * add if they were left out. Anything else needs the DOM.
+     * @param name the name of a table element
+     * @param cls its class or null
+     */
+    private void tableTag( String name, String cls ) throws Exception
+    {
+        String cur = current().name;
+        if ( name.equals("table") )
+        {
+            if ( inTable() )
+                throw new MMLRepairException("<table> inside <"+cur+">");
+            if ( inScope("p",true) )
+            {
+                generateImpliedEndTags( "p" );
+                popUntil( "p" );
+            }
+        }
+        else if ( name.equals("tbody")||name.equals("thead")
+            ||name.equals("tfoot") )
+        {
+            if ( cur.equals("tbody")||cur.equals("thead")||cur.equals("tfoot") )
+                pop();
+            else if ( !cur.equals("table") )
+                throw new MMLRepairException("<"+name+"> inside <"+cur+">");
+        }
+        else if ( name.equals("tr") )
+        {
+            if ( cur.equals("tr") )
+                pop();
+            else if ( cur.equals("table") )
+                push( "tbody", null );
+            else if ( !inTable() )
+                throw new MMLRepairException("<tr> inside <"+cur+">");
+        }
+        else    // td or th
+        {
+            if ( cur.equals("table") )
+            {
+                push( "tbody", null );
+                push( "tr", null );
+            }
+            else if ( !cur.equals("tr") && inTable() )
+                push( "tr", null );
+            else if ( !cur.equals("tr") )
+                throw new MMLRepairException("<"+name+"> inside <"+cur+">");
+            // formatting elements opened outside don't reach into the cell
+            active.add( null );
+        }
+        push( name, cls );
+    }
+    /**
+     * Find the last active formatting element of a given name
+     * @param name the element name
+     * @return the element or null
+     */
+    private Element activeElement( String name )
+    {
+        for ( int i=active.size()-1;i>=0;i-- )
+        {
+            Element e = active.get(i);
+            if ( e == null )
+                break;
+            else if ( e.name.equals(name) )
+                return e;
+        }
+        return null;
+    }
+    /**
+     * Reopen formatting elements closed by the end of a block, so 
+     * that they go on applying to the text that follows
+     */
+    private void reconstruct() throws Exception
+    {
+        int size = active.size();
+        if ( size == 0 || active.get(size-1) == null 
+            || active.get(size-1).onStack )
+            return;
+        int pos = size-1;
+        while ( pos > 0 && active.get(pos-1) != null 
+            && !active.get(pos-1).onStack )
+            pos--;
+        for ( ;pos<size;pos++ )
+        {
+            Element old = active.get( pos );
+            active.set( pos, push(old.name,old.cls) );
+        }
+    }
+    /**
+     * Close a formatting element. Where jsoup would have to move a 
+     * block out of it we give up.
+     * @param name the name of the formatting element
+     * @return false if it was not active
+     */
+    private boolean adopt( String name ) throws Exception
+    {
+        Element formatEl = activeElement( name );
+        if ( formatEl == null )
+            return false;
+        else if ( !formatEl.onStack )
+            active.remove( formatEl );
+        else if ( inScope(name,false) )
+        {
+            boolean seen = false;
+            for ( int i=0;i<open.size();i++ )
+            {
+                Element e = open.get(i);
+                if ( e == formatEl )
+                    seen = true;
+                else if ( seen && special.contains(e.name) )
+                    throw new MMLRepairException("</"+name+"> encloses <"
+                        +e.name+">");
+            }
+            popUntil( name );
+            active.remove( formatEl );
+        }
+        return true;
+    }
+    /**
+     * A new list item closes the one before it
+     * @param name li, dd or dt
+     */
+    private void closeListItem( String name ) throws Exception
+    {
+        boolean li = name.equals("li");
+        for ( int i=open.size()-1;i>0;i-- )
+        {
+            String n = open.get(i).name;
+            if ( (li&&n.equals("li")) || (!li&&(n.equals("dd")||n.equals("dt"))) )
+            {
+                generateImpliedEndTags( n );
+                popUntil( n );
+                break;
+            }
+            else if ( special.contains(n) && !n.equals("address") 
+                && !n.equals("div") && !n.equals("p") )
+                break;
+        }
+    }
+    /**
+     * Handle an end tag
+     * @param name its name
+     */
+    void endTag( String name ) throws Exception
+    {
+        if ( name.equals("html")||name.equals("body")||name.equals("head") )
+            return;
+        else if ( name.equals("p") )
+        {
+            if ( !inScope("p",true) )
+            {
+                startTag( "p", null, false );
+                endTag( "p" );
+            }
+            else
+            {
+                generateImpliedEndTags( "p" );
+                popUntil( "p" );
+            }
+        }
+        else if ( isHeading(name) )
+        {
+            if ( headingInScope() )
+            {
+                generateImpliedEndTags( name );
+                while ( open.size() > 1 )
+                {
+                    Element e = pop();
+                    if ( isHeading(e.name) )
+                        break;
+                }
+            }
+        }
+        else if ( blockEnds.contains(name) )
+        {
+            if ( inScope(name,false) )
+            {
+                generateImpliedEndTags( name );
+                popUntil( name );
+            }
+        }
+        else if ( name.equals("br") )
+            startTag( "br", null, false );
+        else if ( tableParts.contains(name) )
+        {
+            if ( inTableScope(name) )
+            {
+                generateImpliedEndTags( null );
+                popUntil( name );
+            }
+        }
+        else if ( formatting.contains(name) && adopt(name) )
+            return;
+        else
+        {
+            for ( int i=open.size()-1;i>0;i-- )
+            {
+                Element e = open.get(i);
+                if ( e.name.equals(name) )
+                {
+                    generateImpliedEndTags( name );
+                    popUntil( name );
+                    break;
+                }
+                else if ( special.contains(e.name) )
+                    break;
+            }
+        }
+    }
+    /**
+     * Open an element and start its range
+     * @param name the element name
+     * @param cls its class or null
+     */
+    private Element push( String name, String cls ) throws Exception
+    {
+        Element parent = current();
+        Element e = new Element( name, cls, parent );
+        open.add( e );
+        e.onStack = true;
+        if ( parent.held != null )
+        {
+            e.held = parent.held;
+            e.children = new ArrayList<Object>();
+            parent.children.add( e );
+            return e;
+        }
+        switch ( parent.kind )
+        {
+            case BODY: case DIV:
+                switch ( h.classifier.classify(name) )
+                {
+                    case SECTION:
+                        e.kind = (parent.kind==BODY)?DIV:OTHER;
+                        break;
+                    case PARA: case HEADING:
+                        e.kind = PARA;
+                        break;
+                    case SPAN:
+                        e.kind = SPAN;
+                        break;
+                    case PRE:
+                        e.kind = PRE;
+                        break;
+                    default:
+                        e.kind = OTHER;
+                        break;
+                }
+                break;
+            case PARA:
+                e.kind = (name.equals("span"))?SPAN:OTHER;
+                break;
+            default:
+                e.kind = OTHER;
+                break;
+        }
+        String rName = e.attr();
+        switch ( e.kind )
+        {
+            case DIV:
+                if ( rName.length()==0 )
+                    rName = "section";
+                e.offset = h.sb.length();
+                e.index = h.stil.add( new Range(rName,e.offset,0) );
+                break;
+            case PARA:
+                if ( rName.length()==0 )
+                    rName = (name.equals("p"))?"p":name;
+                e.lineFormat = h.isLineFormat( rName );
+                if ( e.lineFormat || h.prevWasMilestone )
+                    h.ensure(1,false);
+                else
+                    h.ensure(2,true);
+                e.offset = h.sb.length();
+                e.index = h.stil.add( new Range(rName,e.offset,0) );
+                break;
+            case OTHER:
+                if ( rName.length()==0 )
+                    rName = name;
+                e.offset = h.sb.length();
+                e.index = h.stil.add( new Range(rName,e.offset,0) );
+                break;
+            case SPAN: case PRE:
+                e.held = e;
+                e.children = new ArrayList<Object>();
+                break;
+        }
+        return e;
+    }
+    /**
+     * Close the current element and finish its range
+     * @return the element closed
+     */
+    private Element pop() throws Exception
+    {
+        Element e = open.remove( open.size()-1 );
+        e.onStack = false;
+        if ( e.name.equals("td")||e.name.equals("th") )
+        {
+            // forget formatting elements opened in the cell
+            while ( !active.isEmpty() )
+                if ( active.remove(active.size()-1) == null )
+                    break;
+        }
+        if ( e.held == e )
+        {
+            if ( e.kind == SPAN )
+                parseSpan( e );
+            else
+                parsePre( e );
+        }
+        else if ( e.inherited )
+        {
+            // its range belongs to an earlier chunk
+            if ( e.kind == DIV )
+                h.ensure(3,true);
+            e.end = h.sb.length();
+            h.prevWasMilestone = false;
+        }
+        else if ( e.held == null )
+        {
+            switch ( e.kind )
+            {
+                case DIV:
+                    h.ensure(3,true);
+                    h.stil.updateLen(e.index,h.sb.length()-e.offset);
+                    h.prevWasMilestone = false;
+                    break;
+                case PARA:
+                    if ( e.lineFormat )
+                        h.ensure(1,true);
+                    else
+                        h.ensure(2,true);
+                    h.stil.updateLen(e.index,h.sb.length()-e.offset);
+                    h.prevWasMilestone = false;
+                    break;
+                case OTHER:
+                    h.stil.updateLen(e.index,h.sb.length()-e.offset);
+                    h.prevWasMilestone = false;
+                    break;
+            }
+        }
+        return e;
+    }
+    /**
+     * Handle some text
+     * @param text the decoded text
+     */
+    void text( String text ) throws Exception
+    {
+        if ( inTable() )
+        {
+            if ( !StringUtil.isBlank(text) )
+                throw new MMLRepairException("text inside <"
+                    +current().name+">");
+        }
+        else if ( !rawText.contains(current().name) )
+            reconstruct();
+        Element e = current();
+        if ( e.held != null )
+            e.children.add( text );
+        else if ( e.kind == PARA || e.kind == OTHER )
+            h.sb.append( text );
+        // else it is insignificant white space
+    }
+    /**
+     * Does a held element have any text that is not white space?
+     * @param e the element
+     * @return true if it does
+     */
+    static boolean hasText( Element e )
+    {
+        for ( Object child : e.children )
+        {
+            if ( child instanceof String )
+            {
+                if ( !StringUtil.isBlank((String)child) )
+                    return true;
+            }
+            else if ( hasText((Element)child) )
+                return true;
+        }
+        return false;
+    }
+    static boolean preserves( Element e )
+    {
+        return e != null && Tag.valueOf(e.name).preserveWhitespace();
+    }
+    /**
+     * Get the normalised text of a held element, as jsoup's text()
+     * @param e the element
+     * @return its text, trimmed
+     */
+    static String text( Element e )
+    {
+        StringBuilder accum = new StringBuilder();
+        text( e, accum );
+        return accum.toString().trim();
+    }
+    private static void text( Element e, StringBuilder accum )
+    {
+        for ( Object child : e.children )
+        {
+            if ( child instanceof String )
+            {
+                String text = (String)child;
+                if ( !preserves(e) && !preserves(e.parent) )
+                {
+                    text = StringUtil.normaliseWhitespace( text );
+                    if ( accum.length()>0 && accum.charAt(accum.length()-1)==' ' )
+                        text = text.replaceFirst("^\\s+", "");
+                }
+                accum.append( text );
+            }
+            else
+            {
+                Element elem = (Element)child;
+                if ( accum.length() > 0 && (Tag.valueOf(elem.name).isBlock()
+                    || elem.name.equals("br"))
+                    && accum.charAt(accum.length()-1) != ' ' )
+                    accum.append( " " );
+                text( elem, accum );
+            }
+        }
+    }
+    /**
+     * Parse a held element that is not a span, p or div
+     * @param elem the element
+     */
+    private void parseOtherElement( Element elem ) throws Exception
+    {
+        int offset = h.sb.length();
+        String name = elem.attr();
+        if ( name.length()==0 )
+            name = elem.name;
+        int index = h.stil.add( new Range(name,offset,0) );
+        for ( Object child : elem.children )
+        {
+            if ( child instanceof Element )
+                parseOtherElement( (Element)child );
+            else
+                h.sb.append( (String)child );
+        }
+        h.stil.updateLen(index,h.sb.length()-offset);
+        h.prevWasMilestone = false;
+    }
+    /**
+     * Parse a held codeblock
+     * @param elem the pre element
+     */
+    private void parsePre( Element elem ) throws Exception
+    {
+        if ( hasText(elem) )
+        {
+            int offset = h.sb.length();
+            String name = elem.attr();
+            if ( name.length()==0 )
+                name = "pre";
+            int index = h.stil.add( new Range(name,offset,0) );
+            if ( elem.cls != null )
+            {
+                for ( Object child : elem.children )
+                {
+                    if ( child instanceof Element )
+                    {
+                        Element e = (Element)child;
+                        if ( e.name.equals("span") )
+                            parseSpan( e );
+                        else
+                            parseOtherElement( e );
+                    }
+                    else
+                        h.sb.append( (String)child );
+                }
+            }
+            else
+                h.sb.append( text(elem) );
+            h.stil.updateLen(index,h.sb.length()-offset);
+        }
+        h.prevWasMilestone = false;
+        h.ensure(1,false);
+    }
+    /**
+     * Parse a held span with a class or not
+     * @param span the span
+     */
+    private void parseSpan( Element span ) throws Exception
+    {
+        if ( hasText(span) )
+        {
+            int offset = h.sb.length();
+            String name = span.attr();
+            Range r = new Range( name, offset, 0 );
+            if ( name.length()==0 )
+                name = "span";
+            if ( h.isMilestone(name) )
+            {
+                int index = h.pages.add(r);
+                h.milestoneRanges.add(index);
+                h.sb.append(text(span));
+                h.sb.append("\n");
+                h.pages.updateLen(index,h.sb.length()-offset);
+                h.prevWasMilestone = true;
+            }
+            else if ( name.equals("soft-hyphen") )
+            {
+                // hard or soft is decided once the text is complete
+                int index = h.stil.add(r);
+                h.sb.append(text(span));
+                h.stil.updateLen(index,h.sb.length()-offset);
+                h.hyphens.add( index );
+            }
+            else    // span may contain other spans
+            {
+                int index = h.stil.add(r);
+                for ( Object child : span.children )
+                {
+                    if ( child instanceof Element )
+                    {
+                        Element e = (Element)child;
+                        if ( e.name.equals("span") )
+                            parseSpan( e );
+                        else 
+                            parseOtherElement( e );
+                    }
+                    else
+                        h.sb.append( StringUtil.normaliseWhitespace(
+                            (String)child) );
+                }
+                if ( h.isLineFormat(name) )
+                    h.ensure(1,false);
+                h.stil.updateLen(index,h.sb.length()-offset);
+            }
+        }
+        // else strangely no text: ignore it
+    }
+}
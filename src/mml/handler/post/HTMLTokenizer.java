@@ -0,0 +1,354 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import org.jsoup.parser.Parser;
+
+/**
+ * Pull tokens one at a time from a stream of HTML without building a tree. 
+ * Text and attributes are decoded the same way jsoup decodes them.
+ * @author desmond
+ */
+public class HTMLTokenizer 
+{
+    static final int EOF = 0;
+    static final int START = 1;
+    static final int END = 2;
+    static final int TEXT = 3;
+    /**
+     * One token read from the stream
+     */
+    static class Token
+    {
+        int type;
+        /** tag name, lower case */
+        String name;
+        /** value of the class attribute or null if absent */
+        String cls;
+        /** true if the start tag ended in "/>" */
+        boolean selfClosing;
+        /** decoded text */
+        String text;
+        Token( int type )
+        {
+            this.type = type;
+        }
+    }
+    Reader in;
+    /** one char of lookahead, or -2 if none */
+    int peeked;
+    /** tokens read but not yet handed out */
+    ArrayDeque<Token> queue;
+    /** the raw text element we are inside, if any */
+    String rawText;
+    StringBuilder buf;
+    /**
+     * Create a tokenizer
+     * @param in the HTML source
+     */
+    public HTMLTokenizer( Reader in )
+    {
+        this.in = in;
+        this.peeked = -2;
+        this.buf = new StringBuilder();
+        this.queue = new ArrayDeque<Token>();
+    }
+    private int read() throws IOException
+    {
+        if ( peeked != -2 )
+        {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return in.read();
+    }
+    private int peek() throws IOException
+    {
+        if ( peeked == -2 )
+            peeked = in.read();
+        return peeked;
+    }
+    private static boolean isSpace( int c )
+    {
+        return c==' '||c=='\t'||c=='\n'||c=='\r'||c=='\f';
+    }
+    private static boolean isLetter( int c )
+    {
+        return (c>='a'&&c<='z')||(c>='A'&&c<='Z');
+    }
+    /**
+     * Is this an element whose content is not parsed as HTML?
+     * @param name the tag name
+     * @return true if it is
+     */
+    private static boolean isRawText( String name )
+    {
+        return name.equals("script")||name.equals("style")
+            ||name.equals("textarea")||name.equals("title")
+            ||name.equals("xmp")||name.equals("iframe")
+            ||name.equals("noembed")||name.equals("noframes");
+    }
+    /**
+     * Read the next token
+     * @return the token, of type EOF at the end
+     * @throws IOException 
+     */
+    public Token next() throws IOException
+    {
+        if ( queue.isEmpty() )
+        {
+            if ( rawText != null )
+                readRawText();
+            else
+                readData();
+        }
+        return queue.remove();
+    }
+    /**
+     * Queue the text read so far, if any
+     */
+    private void flushText()
+    {
+        if ( buf.length() > 0 )
+        {
+            Token t = new Token( TEXT );
+            t.text = Parser.unescapeEntities( buf.toString(), false );
+            queue.add( t );
+            buf.setLength( 0 );
+        }
+    }
+    /**
+     * Read text up to and including the next tag
+     */
+    private void readData() throws IOException
+    {
+        buf.setLength( 0 );
+        while ( queue.isEmpty() )
+        {
+            int c = peek();
+            if ( c == -1 )
+            {
+                flushText();
+                queue.add( new Token(EOF) );
+            }
+            else if ( c == '<' )
+            {
+                read();
+                int d = peek();
+                if ( isLetter(d) )
+                {
+                    flushText();
+                    Token t = readStartTag();
+                    queue.add( t );
+                    if ( !t.selfClosing && isRawText(t.name) )
+                        rawText = t.name;
+                }
+                else if ( d == '/' )
+                {
+                    read();
+                    if ( isLetter(peek()) )
+                    {
+                        flushText();
+                        queue.add( readEndTag() );
+                    }
+                    else    // "</>" or a bogus comment
+                        skipTo( '>' );
+                }
+                else if ( d == '!' || d == '?' )
+                {
+                    read();
+                    skipComment( d );
+                }
+                else
+                    buf.append( '<' );
+            }
+            else if ( c == 0 )
+                read();
+            else
+                buf.append( (char)read() );
+        }
+    }
+    /**
+     * Skip up to and including a given char
+     * @param end the char to stop at
+     */
+    private void skipTo( int end ) throws IOException
+    {
+        int c;
+        do
+            c = read();
+        while ( c != -1 && c != end );
+    }
+    /**
+     * Skip a comment, doctype or processing instruction
+     * @param kind '!' or '?'
+     */
+    private void skipComment( int kind ) throws IOException
+    {
+        if ( kind == '!' && peek() == '-' )
+        {
+            read();
+            if ( peek() == '-' )
+            {
+                read();
+                // a real comment: ends at "-->"
+                int dashes = 0;
+                int c;
+                while ( (c=read()) != -1 )
+                {
+                    if ( c == '>' && dashes >= 2 )
+                        break;
+                    dashes = (c=='-')?dashes+1:0;
+                }
+                return;
+            }
+        }
+        skipTo( '>' );
+    }
+    /**
+     * Read a tag name, lower-cased
+     * @return the name
+     */
+    private String readName() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ( (c=peek()) != -1 && !isSpace(c) && c != '/' && c != '>' )
+            sb.append( Character.toLowerCase((char)read()) );
+        return sb.toString();
+    }
+    /**
+     * Read a start tag and its attributes, keeping only the class
+     * @return the tag token
+     */
+    private Token readStartTag() throws IOException
+    {
+        Token t = new Token( START );
+        t.name = readName();
+        int c;
+        while ( (c=peek()) != -1 )
+        {
+            if ( c == '>' )
+            {
+                read();
+                break;
+            }
+            else if ( c == '/' )
+            {
+                read();
+                if ( peek() == '>' )
+                {
+                    read();
+                    t.selfClosing = true;
+                    break;
+                }
+            }
+            else if ( isSpace(c) )
+                read();
+            else
+                readAttribute( t );
+        }
+        return t;
+    }
+    /**
+     * Read one attribute. Only the class is kept.
+     * @param t the start tag it belongs to
+     */
+    private void readAttribute( Token t ) throws IOException
+    {
+        StringBuilder key = new StringBuilder();
+        int c;
+        key.append( Character.toLowerCase((char)read()) );
+        while ( (c=peek()) != -1 && !isSpace(c) && c != '/' && c != '>' 
+            && c != '=' )
+            key.append( Character.toLowerCase((char)read()) );
+        while ( isSpace(peek()) )
+            read();
+        String value = "";
+        if ( peek() == '=' )
+        {
+            read();
+            while ( isSpace(peek()) )
+                read();
+            StringBuilder val = new StringBuilder();
+            int quote = peek();
+            if ( quote == '"' || quote == '\'' )
+            {
+                read();
+                while ( (c=read()) != -1 && c != quote )
+                    val.append( (char)c );
+            }
+            else
+            {
+                while ( (c=peek()) != -1 && !isSpace(c) && c != '>' )
+                    val.append( (char)read() );
+            }
+            value = Parser.unescapeEntities( val.toString(), true );
+        }
+        if ( key.toString().equals("class") )
+            t.cls = value;
+    }
+    /**
+     * Read an end tag, ignoring anything after its name
+     * @return the tag token
+     */
+    private Token readEndTag() throws IOException
+    {
+        Token t = new Token( END );
+        t.name = readName();
+        skipTo( '>' );
+        return t;
+    }
+    /**
+     * Read the content of a script, style, textarea etc up to its end 
+     * tag. Only textarea and title content counts as text.
+     */
+    private void readRawText() throws IOException
+    {
+        String end = "</"+rawText;
+        buf.setLength( 0 );
+        int c;
+        while ( (c=read()) != -1 )
+        {
+            buf.append( (char)c );
+            int len = buf.length();
+            if ( len >= end.length() 
+                && buf.substring(len-end.length()).equalsIgnoreCase(end) )
+            {
+                int d = peek();
+                if ( d == '>' || d == '/' || isSpace(d) || d == -1 )
+                {
+                    buf.setLength( len-end.length() );
+                    skipTo( '>' );
+                    break;
+                }
+            }
+        }
+        if ( rawText.equals("textarea") || rawText.equals("title") )
+            flushText();
+        Token t = new Token( END );
+        t.name = rawText;
+        queue.add( t );
+        buf.setLength( 0 );
+        rawText = null;
+    }
+}
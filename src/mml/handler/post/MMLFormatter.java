@@ -0,0 +1,1082 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Format MML text into HTML using a dialect, exactly as the editor's 
+ * formatter.js does, so that MML posted to the server is read the same 
+ * way as the HTML the editor would have posted. The HTML is then 
+ * streamed through HTMLConverter like any posted HTML, rather than 
+ * turned straight into text and STIL, so that the two paths can't 
+ * disagree. The price is that this is a second copy of formatter.js: 
+ * each function is a port of the one of the same name there, oddities 
+ * and all, and must be changed by hand whenever it is. Run 
+ * test/compare-formatter.sh after any change to either; it checks that 
+ * both make the same HTML from each test/*.mml.
+ * @author desmond
+ */
+public class MMLFormatter 
+{
+    /** dialect file of MML */
+    JSONObject dialect;
+    /** heading props keyed by their underline chars */
+    HashMap<String,String> heads;
+    /** heading tags (h1,h2..) keyed by their props */
+    HashMap<String,String> tags;
+    /** divider props keyed by their tags */
+    HashMap<String,String> dividers;
+    /** charformat props keyed by their tags */
+    HashMap<String,String> cfmts;
+    /** set if the current paragraph got some other format than p */
+    boolean formatted;
+    /**
+     * A piece of the text with the MML and HTML that precede it
+     */
+    static class Link
+    {
+        String mml;
+        String html;
+        String text;
+        Link next;
+        Link prev;
+        Link( String mml, String html, String text, Link next, Link prev )
+        {
+            this.mml = mml;
+            this.html = html;
+            this.text = text;
+            this.next = next;
+            this.prev = prev;
+        }
+        /**
+         * Convert this link and all its subsequent ones into HTML
+         * @return the HTML
+         */
+        String toHtml()
+        {
+            StringBuilder sb = new StringBuilder();
+            for ( Link temp=this;temp!=null;temp=temp.next )
+            {
+                sb.append( temp.html );
+                sb.append( temp.text );
+            }
+            return sb.toString();
+        }
+        void prependHtml( String html )
+        {
+            this.html = html + this.html;
+        }
+        void prependMml( String mml )
+        {
+            this.mml = mml + this.mml;
+        }
+        /**
+         * Split a link at a known place
+         * @param pos the offset into the text of the link to split at
+         * @param numDel number of characters to delete after split point
+         * @return the new link in the middle
+         */
+        Link split( int pos, int numDel )
+        {
+            String left = substr(text,0,pos);
+            String right = substr(text,pos+numDel);
+            Link link = new Link("","",right,this.next,this);
+            this.text = left;
+            this.next.prev = link;
+            this.next = link;
+            return link;
+        }
+        /**
+         * Is this line already marked up as a milestone?
+         * @param mss the milestones from the dialect
+         * @return the milestone object or null
+         */
+        JSONObject isMilestone( JSONArray mss )
+        {
+            if ( mss == null )
+                return null;
+            if ( html.length()>0 && next.html.length()>0 )
+            {
+                int index = html.indexOf("class=");
+                if ( html.startsWith("<span ") && index != -1 
+                    && next.html.startsWith("</span>") )
+                {
+                    String tail = html.substring(index);
+                    index = tail.indexOf('"');
+                    if ( index != -1 )
+                    {
+                        String prop = tail.substring(index+1);
+                        index = prop.indexOf('"');
+                        if ( index != -1 )
+                        {
+                            prop = prop.substring(0,index);
+                            for ( int i=0;i<mss.size();i++ )
+                            {
+                                JSONObject ms = (JSONObject)mss.get(i);
+                                if ( prop.equals(ms.get("prop")) )
+                                    return ms;
+                            }
+                        }
+                    }
+                }
+            }
+            else
+            {
+                String trimmed = trim(text);
+                for ( int i=0;i<mss.size();i++ )
+                {
+                    JSONObject ms = (JSONObject)mss.get(i);
+                    String left = (String)ms.get("leftTag");
+                    String right = (String)ms.get("rightTag");
+                    if ( left != null && right != null 
+                        && trimmed.startsWith(left) 
+                        && trimmed.endsWith(right) )
+                        return ms;
+                }
+            }
+            return null;
+        }
+    }
+    /**
+     * A section name read from the start of a section
+     */
+    static class SectionName
+    {
+        /** the name or empty */
+        String tag = "";
+        /** the MML text consumed in reading it */
+        String mml = "";
+        /** the HTML that opens the section */
+        String divStart;
+        /** the HTML that closes the last section */
+        String divEnd;
+    }
+    public MMLFormatter( JSONObject dialect )
+    {
+        this.dialect = dialect;
+    }
+    /**
+     * JavaScript's substr(start)
+     * @param s the string
+     * @param start the start offset, from the end if negative
+     * @return the substring
+     */
+    static String substr( String s, int start )
+    {
+        if ( start < 0 )
+            start = Math.max(s.length()+start,0);
+        return (start>=s.length())?"":s.substring(start);
+    }
+    /**
+     * JavaScript's substr(start,length)
+     * @param s the string
+     * @param start the start offset, from the end if negative
+     * @param len the number of chars wanted
+     * @return the substring
+     */
+    static String substr( String s, int start, int len )
+    {
+        s = substr( s, start );
+        return (len<=0)?"":(len>=s.length())?s:s.substring(0,len);
+    }
+    /**
+     * JavaScript's slice(from,to)
+     * @param s the string
+     * @param from the start offset, from the end if negative
+     * @param to the end offset, from the end if negative
+     * @return the substring
+     */
+    static String slice( String s, int from, int to )
+    {
+        int len = s.length();
+        from = (from<0)?Math.max(len+from,0):Math.min(from,len);
+        to = (to<0)?Math.max(len+to,0):Math.min(to,len);
+        return (from<to)?s.substring(from,to):"";
+    }
+    /**
+     * Is this white space to JavaScript's trim?
+     * @param c the char
+     * @return true if trim would remove it
+     */
+    static boolean isTrimmable( char c )
+    {
+        return c==' '||c=='\t'||c=='\n'||c=='\r'||c=='\u000B'||c=='\f'
+            ||c=='\u00A0'||c=='\uFEFF'||c=='\u2028'||c=='\u2029'
+            ||Character.getType(c)==Character.SPACE_SEPARATOR;
+    }
+    /**
+     * JavaScript's trim()
+     * @param s the string
+     * @return s without leading or trailing white space
+     */
+    static String trim( String s )
+    {
+        int from = 0;
+        int to = s.length();
+        while ( from < to && isTrimmable(s.charAt(from)) )
+            from++;
+        while ( to > from && isTrimmable(s.charAt(to-1)) )
+            to--;
+        return s.substring(from,to);
+    }
+    /**
+     * Get a list from the dialect
+     * @param key its key
+     * @return the list or null if it isn't one
+     */
+    JSONArray list( String key )
+    {
+        Object value = dialect.get(key);
+        return (value instanceof JSONArray)?(JSONArray)value:null;
+    }
+    /**
+     * Get the prop of a dialect entry that is an object
+     * @param key the entry's key
+     * @return its prop or null
+     */
+    String prop( String key )
+    {
+        Object value = dialect.get(key);
+        return (value instanceof JSONObject)
+            ?(String)((JSONObject)value).get("prop"):null;
+    }
+    /**
+     * Build a lookup of props by tag
+     * @param key the key of the list in the dialect
+     * @return the lookup
+     */
+    HashMap<String,String> buildLookup( String key )
+    {
+        HashMap<String,String> map = new HashMap<String,String>();
+        JSONArray items = list( key );
+        for ( int k=0;items!=null&&k<items.size();k++ )
+        {
+            JSONObject item = (JSONObject)items.get(k);
+            String tag = (String)item.get("tag");
+            String prop = (String)item.get("prop");
+            if ( tag != null )
+                map.put( tag, (prop!=null)?prop:tag );
+        }
+        return map;
+    }
+    /**
+     * Build quick lookup tables for making headings
+     */
+    void buildHeadLookup()
+    {
+        heads = new HashMap<String,String>();
+        tags = new HashMap<String,String>();
+        JSONArray headings = list( "headings" );
+        for ( int i=0;headings!=null&&i<headings.size();i++ )
+        {
+            JSONObject h = (JSONObject)headings.get(i);
+            String prop = (String)h.get("prop");
+            String tag = (String)h.get("tag");
+            if ( prop != null && tag != null )
+            {
+                heads.put( tag, prop );
+                tags.put( prop, "h"+(i+1) );
+            }
+        }
+    }
+    /**
+     * Make a generic divider. It is a table with four cells.
+     * @param prop the class name of the table and cell properties
+     * @return the HTML table with class names suitable for CSS
+     */
+    String makeDivider( String prop )
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<table class=\"").append(prop).append("\" title=\"");
+        sb.append(prop).append("\"><tr><td class=\"").append(prop);
+        sb.append("-lefttop\"></td><td class=\"").append(prop);
+        sb.append("-righttop\"></td></tr><tr><td class=\"").append(prop);
+        sb.append("-leftbot\"></td><td class=\"").append(prop);
+        sb.append("-rightbot\"></td></tr></table>");
+        return sb.toString();
+    }
+    /**
+     * Process a paragraph for possible dividers
+     * @param para the paragraph to process
+     * @param end the next paragraph
+     */
+    void processDividers( Link para, Link end )
+    {
+        if ( dialect.get("dividers") != null )
+        {
+            for ( Link line=para.next;line!=end&&line!=null;line=line.next )
+            {
+                String tag = trim(line.text);
+                if ( dividers.containsKey(tag) )
+                {
+                    line.html = makeDivider( dividers.get(tag) );
+                    line.mml += line.text;
+                    line.text = "";
+                    formatted = true;
+                }
+            }
+        }
+    }
+    /**
+     * Search for and replace all character formats in the paragraph
+     * @param para the lead link of the paragraph
+     * @param end the next paragraph or end-link
+     */ 
+    void processCfmts( Link para, Link end )
+    {
+        if ( dialect.get("charformats") != null )
+        {
+            boolean trimNextLF = false;
+            ArrayList<String> stack = new ArrayList<String>();
+            Link line = para.next;
+            while ( line != null && line != end )
+            {
+                String text = line.text;
+                // trim leading LF after hyphen
+                if ( trimNextLF )
+                {
+                    if ( line.html.length()>0 && line.html.charAt(0)=='\n' )
+                        line.html = line.html.substring(1);
+                    trimNextLF = false;
+                }
+                int i = 0;
+                while ( i < text.length() )
+                {
+                    String c = String.valueOf(text.charAt(i++));
+                    if ( cfmts.containsKey(c) )
+                    {
+                        Link link = line.split(i-1,1);
+                        if ( !stack.isEmpty() 
+                            && stack.get(stack.size()-1).equals(c) )
+                        {
+                            stack.remove( stack.size()-1 );
+                            link.html = "</span>";
+                        }
+                        else
+                        {
+                            stack.add( c );
+                            link.html = "<span class=\""+cfmts.get(c)
+                                +"\" title=\""+cfmts.get(c)+"\">";
+                        }
+                        link.mml = c;
+                        line = link;
+                        text = line.text;
+                        i = 0;
+                    }
+                    else if ( c.equals("-") && substr(text,i).equals("\n") )
+                    {
+                        Link link = line.split(i-1,1);
+                        Link hyphen = new Link("",
+                            "<span class=\"soft-hyphen\">","-",link,line);
+                        line.next = hyphen;
+                        link.text = "";
+                        link.mml = "\n";
+                        link.prev = hyphen;
+                        link.html = "</span>";
+                        line = link;
+                        text = line.text;
+                        trimNextLF = true;
+                        i = 0;
+                    }
+                }
+                line = line.next;
+            }
+        }
+    }
+    /**
+     * Find start of tag after leading white space
+     * @param text the text to search
+     * @param tag the tag to find at the start
+     * @return -1 on failure else index of tag-start
+     */
+    static int startPos( String text, String tag )
+    {
+        int i = 0;
+        while ( i<text.length()&&(text.charAt(i)=='\t'||text.charAt(i)==' ') )
+            i++;
+        return (text.indexOf(tag)==i)?i:-1;
+    }
+    /**
+     * Find the last instance of tag before trailing white space
+     * @param text the text to search
+     * @param tag the tag to find at the end
+     * @return -1 on failure else index of tag-start at end of text
+     */
+    static int endPos( String text, String tag )
+    {
+        int i = text.length()-1;
+        while ( i >= 0 && (text.charAt(i)==' '||text.charAt(i)=='\n'
+            ||text.charAt(i)=='\t') )
+            i--;
+        int j = tag.length()-1;
+        while ( j >= 0 && i >= 0 && tag.charAt(j)==text.charAt(i) )
+        {
+            j--;
+            i--;
+        }
+        return (j==-1)?i+1:-1;
+    }
+    /**
+     * Scan the start and end of the paragraph for defined para formats.
+     * @param para the link leading into the paragraph 
+     * @param end the link of the next paragraph
+     */
+    void processPfmts( Link para, Link end )
+    {
+        JSONArray pfmts = list( "paraformats" );
+        if ( pfmts != null )
+        {
+            Link line = para.next;
+            for ( int i=0;i<pfmts.size();i++ )
+            {
+                JSONObject pfmt = (JSONObject)pfmts.get(i);
+                String ltag = (String)pfmt.get("leftTag");
+                String rtag = (String)pfmt.get("rightTag");
+                if ( ltag != null && rtag != null )
+                {
+                    int lpos = startPos(para.next.text,ltag);
+                    if ( lpos != -1 )
+                    {
+                        Link last = end.prev;
+                        while ( last != para && last != null )
+                        {
+                            int rpos = endPos(last.text,rtag);
+                            if ( rpos != -1 )
+                            {
+                                String prop = (String)pfmt.get("prop");
+                                line.html += "<p class=\""+prop+"\""
+                                    +" title=\""+prop+"\">";
+                                line.text = substr(line.text,
+                                    lpos+ltag.length());
+                                line.mml += substr(para.next.text,0,
+                                    lpos+ltag.length());
+                                last.prependMml(substr(last.text,rpos));
+                                // recompute
+                                rpos = endPos(last.text,rtag);
+                                last.text = substr(last.text,0,rpos);
+                                last.next.prependHtml("</p>");
+                                formatted = true;
+                                break;
+                            }
+                            last = last.prev;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * Get the quote depth of the current line
+     * @param line the text of the line to test for leading >s
+     * @return the number of leading >s followed by spaces
+     */
+    static int quoteDepth( String line )
+    {
+        int state = 0;
+        int depth = 0;
+        for ( int i=0;i<line.length()&&state!=-1;i++ )
+        {
+            char c = line.charAt(i);
+            if ( state == 0 )
+            {
+                if ( c=='>' )
+                {
+                    depth++;
+                    state = 1;
+                }
+                else if ( c!=' '&&c!='\t' )
+                    state = -1;
+            }
+            else
+                state = (c==' '||c=='\t')?0:-1;
+        }
+        return depth;
+    }
+    /**
+     * Strip the leading quotations from a link and put into mml
+     * @param link the link to strip
+     */
+    static void stripQuotations( Link link )
+    {
+        int i = 0;
+        String line = link.text;
+        if ( line.length()>0 && startPos(line,">")==0 )
+        {
+            char c = line.charAt(0);
+            while ( i<line.length() && (c=='>'||c=='\t'||c==' ') )
+            {
+                i++;
+                if ( i < line.length() )
+                    c = line.charAt(i);
+            }
+        }
+        link.mml += line.substring(0,i);
+        link.text = line.substring(i);
+    }
+    /**
+     * Quotations are lines starting with "> "
+     * @param para the paragraph to scan for quotations and convert
+     * @param end the next paragraph link
+     */
+    void processQuotations( Link para, Link end )
+    {
+        if ( dialect.get("quotations") != null )
+        {
+            String prop = prop( "quotations" );
+            String attr = (prop!=null&&prop.length()>0)
+                ?" class=\""+prop+"\"":"";
+            ArrayList<Integer> stack = new ArrayList<Integer>();
+            Link line = para.next;
+            while ( line != end && line != null )
+            {
+                int depth = quoteDepth(line.text);
+                if ( depth > 0 )
+                {
+                    Integer top = stack.isEmpty()?null:stack.get(stack.size()-1);
+                    if ( top == null || top != depth )
+                    {
+                        if ( top == null || top < depth )
+                        {
+                            for ( int j=stack.size();j<depth;j++ )
+                                line.html += "<blockquote"+attr+">";
+                            stack.add( depth );
+                        }
+                        else if ( depth < top )
+                        {
+                            stack.remove( stack.size()-1 );
+                            line.prependHtml("</blockquote>");
+                        }
+                    }
+                    stripQuotations(line);
+                }
+                line = line.next;
+            }
+            line = end.prev;
+            while ( !stack.isEmpty() && stack.get(stack.size()-1) > 0 )
+            {
+                stack.remove( stack.size()-1 );
+                line.prependHtml("</blockquote>");
+            }
+            if ( startPos(para.next.html,"<blockquote")==0 
+                && startPos(line.html,"</blockquote>")==0 )
+                formatted = true;
+        }
+    }
+    /**
+     * Does the given line define a heading for the line above?
+     * @param line the line to test - should be all the same character
+     * @param c the character that should be uniform
+     * @return true if it qualifies
+     */
+    static boolean isHeading( String line, char c )
+    {
+        for ( int j=0;j<line.length();j++ )
+            if ( line.charAt(j) != c )
+                return false;
+        return true;
+    }
+    /**
+     * Process setext type headings (we don't do atx).
+     * @param para the link whose content needs its headings processed
+     * @param end the start of the next paragraph or link
+     */
+    void processHeadings( Link para, Link end )
+    {
+        if ( dialect.get("headings") != null )
+        {
+            for ( Link link=para.next;link!=end&&link!=null;link=link.next )
+            {
+                String line = link.text;
+                if ( line.length() > 0 )
+                {
+                    char c = line.charAt(0);
+                    String prop = heads.get(String.valueOf(c));
+                    if ( prop != null && isHeading(line,c) )
+                    {
+                        String attr = " class=\""+prop+"\" title=\""+prop+"\"";
+                        link.prev.html += "<"+tags.get(prop)+attr+">";
+                        link.mml += link.text;
+                        link.text = "";
+                        link.prependHtml("</"+tags.get(prop)+">\n");
+                        formatted = true; 
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * Remove leading white space. If no such whitespace do nothing.
+     * @param link the link whose leading ws is to be removed
+     * @param level the level of the preformatting
+     * @return the leading white space
+     */
+    static String leadTrim( Link link, int level )
+    {
+        String trimmed = "";
+        String line = link.text;
+        for ( int i=0;i<level;i++ )
+        {
+            if ( line.startsWith("    ") )
+            {
+                line = line.substring(4);
+                trimmed += "    ";
+            }
+            else if ( line.startsWith("\t") )
+            {
+                line = line.substring(1);
+                trimmed += "\t";
+            }
+        }
+        link.text = line;
+        return trimmed;
+    }
+    /**
+     * Start a new level of preformatting
+     * @param level the depth of the level (greater than 0)
+     * @return the pre tag
+     */
+    String startPre( int level )
+    {
+        JSONObject codeblock = (JSONObject)list("codeblocks").get(level-1);
+        String prop = (String)codeblock.get("prop");
+        formatted = true;
+        return (prop!=null&&prop.length()>0)?"<pre class=\""+prop+"\">"
+            :"<pre>";
+    }
+    /**
+     * Get the indent level of this line
+     * @param line the line with some leading spaces
+     * @return the level (4 spaces or a tab == 1 level)
+     */
+    static int getLevel( String line )
+    {
+        int level = 0;
+        int spaces = 0;
+        int j;
+        for ( j=0;j<line.length();j++ )
+        {
+            char token = line.charAt(j);
+            if ( token == '\t' )
+                level++;
+            else if ( token == ' ' )
+            {
+                spaces++;
+                if ( spaces >= 4 )
+                {
+                    level++;
+                    spaces = 0;
+                }
+            }
+            else
+                break;
+        }
+        // completely blank lines are NOT indented
+        return (j==line.length())?0:level;
+    }
+    /**
+     * Look for four leading white spaces and format as pre
+     * @param para the paragraph to process
+     * @param end the next paragraph
+     */
+    void processCodeBlocks( Link para, Link end )
+    {
+        if ( dialect.get("codeblocks") != null )
+        {
+            JSONArray codeblocks = list( "codeblocks" );
+            JSONArray mss = list( "milestones" );
+            // a codeblocks object has no length, so no levels
+            int levels = (codeblocks!=null)?codeblocks.size():-1;
+            int level = 0;
+            for ( Link line=para.next;line!=end&&line!=null;line=line.next )
+            {
+                int currLevel = getLevel(line.text);
+                if ( currLevel > level )
+                {
+                    if ( level > 0 )
+                        line.html = "</pre>";
+                    if ( currLevel <= levels )
+                        line.html += startPre(currLevel);
+                    else // stay at current level
+                        currLevel = level;
+                }
+                else if ( currLevel < level )
+                {
+                    if ( line.isMilestone(mss) == null )
+                    {
+                        if ( currLevel > 0 )
+                            line.prependHtml("</pre>"+startPre(currLevel));
+                        else
+                            line.prependHtml("</pre>");
+                    }
+                    else    // stay where we are
+                        currLevel = level;
+                }
+                level = currLevel;
+                if ( level > 0 )
+                {
+                    if ( line.text.length() > 0 )
+                        line.mml += leadTrim(line,level);
+                    if ( !line.text.endsWith("\n") 
+                        && line.next.mml.startsWith("\n")
+                        && line.isMilestone(mss) == null )
+                    {
+                        line.next.mml = line.next.mml.substring(1);
+                        line.text += "\n";
+                    }
+                }
+            }
+            if ( level > 0 )
+                end.prependHtml("</pre>\n");
+        }
+    }
+    /**
+     * Process any milestones contained in the current line
+     * @param ms the milestone definition from the dialect
+     * @param link the link containing a milestone
+     */
+    static void processMilestones( JSONObject ms, Link link )
+    {
+        String line = link.text;
+        while ( line.length()>0&&(line.charAt(0)==' '||line.charAt(0)=='\t') )
+        {
+            link.mml += line.charAt(0);
+            line = line.substring(1);
+        }
+        String leftTag = (String)ms.get("leftTag");
+        int endPos = endPos(line,(String)ms.get("rightTag"));
+        int startPos = startPos(line,leftTag);
+        String ref = slice(line,leftTag.length(),endPos);
+        link.mml += slice(line,0,startPos+leftTag.length());
+        link.next.prependMml(substr(line,endPos));
+        link.text = ref;
+        link.html += "<span class=\""+ms.get("prop")+"\">";
+        link.next.prependHtml("</span>");
+    }
+    /**
+     * Turn a paragraph into a linked list of lines
+     * @param para the paragraph link
+     * @param end the next paragraph link
+     */
+    void processLines( Link para, Link end )
+    {
+        JSONArray mss = list( "milestones" );
+        String[] lines = split( para.text, "\n" );
+        Link line = new Link("","",lines[0]+"\n",null,para);
+        JSONObject ms;
+        para.next = line;
+        para.text = "";
+        for ( int i=1;i<lines.length;i++ )
+        {
+            Link prev = line;
+            // restore removed LF
+            String text = (i==lines.length-1)?lines[i]:lines[i]+"\n";
+            line = new Link("","",text,null,prev);
+            prev.next = line;
+            if ( (ms=prev.isMilestone(mss)) != null )
+                processMilestones(ms,prev); 
+        }
+        line.next = end;
+        if ( (ms=line.isMilestone(mss)) != null )
+            processMilestones(ms,line); 
+        end.prev = line;
+    }
+    /**
+     * Process a paragraph. formatter.js also converts smart quotes here, 
+     * but only in the paragraph's own text, which processLines has 
+     * already moved to the lines, so they are left as they are.
+     * @param para the paragraph to process
+     * @param end the next paragraph
+     */
+    void processPara( Link para, Link end )
+    {
+        formatted = false;
+        processLines(para,end);
+        processCodeBlocks(para,end);
+        processHeadings(para,end);
+        processQuotations(para,end);
+        processPfmts(para,end);
+        processDividers(para,end);
+        processCfmts(para,end);
+        if ( !formatted )
+        {
+            String prop = prop( "paragraph" );
+            String attr = (prop!=null&&prop.length()>0)
+                ?" class=\""+prop+"\" title=\""+prop+"\"":"";
+            while ( para.text.length() == 0 && para.next != end 
+                && para.next != null )
+                para = para.next;
+            para.prependHtml("<p"+attr+">");
+            end.html += "</p>";
+        }
+    }
+    /**
+     * Process all the paras in a section
+     * @param section the Link containing the section
+     * @param end the end-section or end-marker
+     */
+    void processSection( Link section, Link end )
+    {
+        // strip leading new lines
+        while ( section.text.startsWith("\n") )
+        {
+            section.text = section.text.substring(1);
+            section.mml += "\n";
+        }
+        String text = section.text;
+        int state = 0;
+        section.text = "";
+        Link prev = new Link("","","",null,section);
+        section.next = prev;
+        String breakText = ""; 
+        int lastPos = 0;
+        // paragraphs break at "\n\n" or "\n   \n" etc.
+        for ( int i=0;i<text.length();i++ )
+        {
+            char c = text.charAt(i);
+            if ( state == 0 )
+            {
+                if ( c == '\n' )
+                {
+                    state = 1;
+                    breakText = "\n";
+                }
+            }
+            else if ( c == '\n' )
+            {
+                int endPos = i-breakText.length();
+                prev.text = text.substring(lastPos,endPos);
+                breakText += c;
+                Link link = new Link(breakText,"","",null,prev);
+                prev.next = link;
+                lastPos = endPos+breakText.length();
+                prev = link;
+                state = 0;
+            }
+            else if ( c != ' ' && c != '\t' )
+                state = 0;
+            else
+                breakText += c;
+        }
+        prev.text = text.substring(lastPos);
+        prev.next = end;
+        end.prev = prev;
+        Link temp = section.next;
+        while ( temp != end )
+        {
+            Link next = temp.next;
+            processPara(temp,next);
+            temp = next;
+        }
+    }
+    /**
+     * Is this a whitespace character?
+     * @param c the character to test
+     * @return true if it is else false
+     */
+    static boolean isWhitespace( char c )
+    {
+        return c==' '||c=='\n'||c=='\t'||c=='\r';
+    }
+    /**
+     * Is this an alphanumeric character? (not 0, as in formatter.js)
+     * @param c the character to test
+     * @return true if it is else false
+     */
+    static boolean isAlphanumeric( char c )
+    {
+        return (c>='a'&&c<='z')||(c>='A'&&c<='Z')||(c>'0'&&c<='9')||c=='_';
+    }
+    /**
+     * Read a section name at the start
+     * @param section the text of the section
+     * @return the name read and the consumed MML text
+     */
+    static SectionName readSectionName( String section )
+    {
+        int state = 0;
+        SectionName ret = new SectionName();
+        for ( int i=0;i<section.length()&&state!=-1;i++ )
+        {
+            char c = section.charAt(i);
+            ret.mml += c;
+            switch ( state )
+            {
+                case 0: // looking for "{"
+                    if ( !isWhitespace(c) )
+                    {
+                        if ( c == '{' )
+                            state = 1;
+                    }
+                    else
+                    {
+                        state = -1;
+                        ret.mml = "";
+                    }
+                    break;
+                case 1: // seen '{'
+                    if ( c == '}' )
+                        state = 2;
+                    else if ( isAlphanumeric(c) )
+                        ret.tag += c;
+                    else
+                    {
+                        ret.tag = "";
+                        ret.mml = "";
+                        state = -1;
+                    }
+                    break;
+                case 2: // reading NL after name
+                    if ( c!=' '&&c!='\t' )
+                    {
+                        if ( c!='\n'&&c!='\r' )
+                        {
+                            ret.mml = "";
+                            ret.tag = "";
+                        }
+                        state = -1;
+                    }
+                    break;
+            }
+        }
+        return ret;
+    }
+    /**
+     * Parse section names to determine what nests inside what
+     * @param ret the named sections, updated on exit
+     */
+    static void parseSectionNames( SectionName[] ret )
+    {
+        ArrayList<String> stack = new ArrayList<String>();
+        for ( int i=0;i<ret.length;i++ )
+        {
+            ret[i].divStart = "";
+            // pop off back to the last section of that name
+            int pos = (ret[i].tag.length()!=0)?stack.indexOf(ret[i].tag):-1;
+            if ( pos > -1 )
+                pos = stack.size()-pos;
+            // unnamed sections terminate all divs
+            if ( ret[i].tag.length() == 0 )
+                pos = stack.size();
+            while ( pos > 0 )
+            {
+                ret[i].divStart += "</div>";
+                stack.remove( stack.size()-1 );
+                pos--;
+            }
+            stack.add( ret[i].tag );
+            String sectionName = (ret[i].tag.length()==0)?"section":ret[i].tag;
+            ret[i].divStart += "<div class=\""+sectionName+"\">";
+        }
+        ret[ret.length-1].divEnd = "</div>";
+    }
+    /**
+     * JavaScript's split on a string, keeping empty pieces
+     * @param text the text to split
+     * @param sep the separator
+     * @return the pieces
+     */
+    static String[] split( String text, String sep )
+    {
+        ArrayList<String> parts = new ArrayList<String>();
+        int start = 0;
+        int pos;
+        while ( (pos=text.indexOf(sep,start)) != -1 )
+        {
+            parts.add( text.substring(start,pos) );
+            start = pos+sep.length();
+        }
+        parts.add( text.substring(start) );
+        return parts.toArray( new String[parts.size()] );
+    }
+    /**
+     * Convert the MML text into HTML
+     * @param text the MML text to convert
+     * @return HTML
+     */
+    public String toHTML( String text )
+    {
+        buildHeadLookup();
+        cfmts = buildLookup( "charformats" );
+        dividers = buildLookup( "dividers" );
+        String[] sections = split( text, "\n\n\n" );
+        SectionName[] ret = new SectionName[sections.length];
+        for ( int i=0;i<sections.length;i++ )
+            ret[i] = readSectionName(sections[i]);
+        parseSectionNames( ret );
+        Link first = null;
+        Link link = null;
+        for ( int i=0;i<sections.length;i++ )
+        {
+            Link prev = link;
+            String prefix = (i==0)?"":"\n\n\n";
+            link = new Link(prefix,ret[i].divStart,
+                sections[i].substring(ret[i].mml.length()),null,prev);
+            if ( first == null )
+                first = link;
+            else
+                prev.next = link;
+        }
+        // balance HTML
+        link.next = new Link("",ret[ret.length-1].divEnd,"",null,link);
+        Link temp = first;
+        while ( temp.next != null )
+        {
+            Link next = temp.next;
+            if ( temp.text.length() > 0 )
+                processSection(temp,next);
+            temp = next;
+        }
+        return first.toHtml();
+    }
+    /**
+     * Print the HTML for an MML file, to compare with formatter.js
+     * @param args the dialect file and the MML file
+     */
+    public static void main( String[] args )
+    {
+        if ( args.length != 2 )
+            System.out.println("usage: java mml.handler.post.MMLFormatter "
+                +"<dialect>.json <text>.mml");
+        else
+        {
+            try
+            {
+                String json = FileUtils.readFileToString(new File(args[0]),
+                    "UTF-8");
+                String mml = FileUtils.readFileToString(new File(args[1]),
+                    "UTF-8");
+                MMLFormatter f = new MMLFormatter(
+                    (JSONObject)JSONValue.parse(json) );
+                PrintStream out = new PrintStream(System.out,true,"UTF-8");
+                out.print( f.toHTML(mml) );
+            }
+            catch ( Exception e )
+            {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+}
@@ -18,8 +18,11 @@
 
 package mml.handler.post;
 
-import calliope.AeseSpeller;
+import mml.speller.HyphenLexicon;
+import mml.speller.SpellerPool;
+import java.io.IOException;
 import java.util.List;
+import java.util.ArrayList;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,18 +34,20 @@ import mml.constants.Formats;
 import mml.constants.Params;
 import calliope.core.database.Connector;
 import calliope.core.exception.JSONException;
+import mml.exception.MMLConflictException;
 import mml.exception.MMLException;
 import mml.exception.MMLSaveException;
+import mml.exception.MMLRepairException;
 import calliope.core.json.corcode.Range;
 import mml.handler.mvd.Archive;
-import mml.Autosave;
 import mml.handler.json.STILDocument;
+import mml.handler.scratch.Revisions;
+import mml.handler.scratch.ScratchBatch;
 import mml.handler.scratch.ScratchVersionSet;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
@@ -66,6 +71,22 @@ public class MMLPostHTMLHandler extends MMLPostHandler
         // add more milestone keywords here
     }
     boolean prevWasMilestone;
+    /** indices in stil of soft-hyphens found during the parse */
+    ArrayList<Integer> hyphens;
+    /** indices in pages of milestones found during the parse */
+    ArrayList<Integer> milestoneRanges;
+    /** the dialect compiled for the walk */
+    ElementClassifier classifier;
+    /** the top-level blocks: HTML or indices of blocks in the base save */
+    JSONArray blocks;
+    /** the revision id of the save the blocks refer to */
+    String base;
+    /** this save's blocks, if posted as blocks */
+    SavedBlocks saving;
+    /** the revision the save was based on, or -1 if none was given */
+    long rev = -1;
+    /** name of the default style, looked up by begin() if not set */
+    String defaultStyle;
     void parseRequest( HttpServletRequest request ) throws FileUploadException, 
         Exception
     {
@@ -97,6 +118,14 @@ public class MMLPostHTMLHandler extends MMLPostHandler
                         {
                             html = contents;
                         }
+                        else if ( fieldName.equals(Params.MML) )
+                            mml = contents;
+                        else if ( fieldName.equals(Params.BLOCKS) )
+                            blocks = (JSONArray)JSONValue.parse(contents);
+                        else if ( fieldName.equals(Params.BASE) )
+                            base = contents;
+                        else if ( fieldName.equals(Params.REV) )
+                            rev = Long.parseLong( contents );
                         else if ( fieldName.equals(Params.ENCODING) )
                             encoding = contents;
                         else if ( fieldName.equals(Params.AUTHOR) )
@@ -133,8 +162,6 @@ public class MMLPostHTMLHandler extends MMLPostHandler
                 description = "Version "+version1;
             if ( docid == null )
                 throw new Exception("missing docid");
-            if ( html == null )
-                throw new Exception( "Missing html");
             if ( dialect == null )
                 throw new Exception("Missing dialect");
         }       
@@ -156,7 +183,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
             ensure(2,true);
         int offset = sb.length();
         Range r = new Range( name, offset, 0 );
-        stil.add( r );
+        int index = stil.add( r );
         for ( Node child: children )
         {
             if ( child instanceof Element )
@@ -177,7 +204,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
             ensure(1,true);
         else
             ensure(2,true);
-        this.stil.updateLen(r,sb.length()-offset);
+        this.stil.updateLen(index,sb.length()-offset);
         prevWasMilestone = false;
     }
     /**
@@ -192,7 +219,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
         if ( name == null || name.length()==0 )
             name = elem.nodeName();
         Range r = new Range( name, offset, 0 );
-        stil.add( r );
+        int index = stil.add( r );
         for ( Node child: children )
         {
             if ( child instanceof Element )
@@ -200,7 +227,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
             else if ( child instanceof TextNode )
                 sb.append( ((TextNode)child).getWholeText() );
         }
-        this.stil.updateLen(r,sb.length()-offset);
+        this.stil.updateLen(index,sb.length()-offset);
         prevWasMilestone = false;
     }
     /**
@@ -208,7 +235,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
      * @param nNLs the number of newlines that must be at the end of sb
      * @param erase true if we are allowed to erase existing NLs
      */
-    private void ensure( int nNLs, boolean erase )
+    protected void ensure( int nNLs, boolean erase )
     {
         int nExisting = 0;
         if ( sb.length()>0 )
@@ -239,72 +266,69 @@ public class MMLPostHTMLHandler extends MMLPostHandler
      */
     private void parseDiv( Element div ) throws JSONException
     {
-        List<Node> children = div.childNodes();
-        int offset = sb.length();
+        int index = openDiv( div );
+        parseSection( div );
+        closeDiv( index );
+    }
+    /**
+     * Start the range of a section
+     * @param div the div
+     * @return the index of its range in stil
+     * @throws JSONException 
+     */
+    int openDiv( Element div ) throws JSONException
+    {
         String name = div.attr("class");
         if ( name == null||name.length()==0 )
             name = "section";
-        Range r = new Range( name, offset, 0 );
-        stil.add( r );
+        Range r = new Range( name, sb.length(), 0 );
+        return stil.add( r );
+    }
+    /**
+     * Parse the contents of a section
+     * @param div the div
+     * @throws JSONException 
+     */
+    void parseSection( Element div ) throws JSONException
+    {
+        List<Node> children = div.childNodes();
         for ( Node child: children )
         {
             if ( child instanceof Element )
             {
                 String nName = child.nodeName().toLowerCase();
-                if ( nName.equals("p") )
-                    parsePara( (Element)child, "p" );
-                else if ( nName.matches("(h|H)\\d") )
-                    parsePara( (Element) child, nName );
-                else if ( child.nodeName().toLowerCase().equals("span") )
-                    parseSpan( (Element)child );
-                else if ( nName.equals("pre") )
-                    parsePre( (Element) child );
-                else
-                    parseOtherElement((Element)child);
+                switch ( classifier.classify(nName) )
+                {
+                    case PARA:
+                        parsePara( (Element)child, "p" );
+                        break;
+                    case HEADING:
+                        parsePara( (Element) child, nName );
+                        break;
+                    case SPAN:
+                        parseSpan( (Element)child );
+                        break;
+                    case PRE:
+                        parsePre( (Element) child );
+                        break;
+                    default:
+                        parseOtherElement((Element)child);
+                        break;
+                }
             }
         }
-        ensure(3,true);
-        this.stil.updateLen(r,sb.length()-offset);
-        prevWasMilestone = false;
     }
     /**
-     * Remove leading and trailing punctuation
-     * @param input the raw string
-     * @param leading true if this is the first word of a hyphenated pair
-     * @return the trimmed string
+     * End a section
+     * @param index the index of its range in stil, or -1 if an earlier 
+     * chunk of the document added it
      */
-    private String clean( String input, boolean leading )
+    void closeDiv( int index )
     {
-        int start = 0;
-        while ( start < input.length() )
-            if ( !Character.isLetter(input.charAt(start)) )
-                start++;
-            else
-                break;
-        int end = input.length()-1;
-        while ( end >= 0 )
-            if ( !Character.isLetter(input.charAt(end)) )
-                end--;
-            else
-                break;
-        // reset start or end after internal punctuation
-        if ( leading )
-        {
-            for ( int i=start;i<=end;i++ )
-            {
-                if ( !Character.isLetter(input.charAt(i)) )
-                    start = i+1;
-            }
-        }
-        else
-        {
-            for ( int i=end;i>=start;i-- )
-            {
-                if ( !Character.isLetter(input.charAt(i)) )
-                    end = i-1;
-            }
-        }
-        return (start<=end)?input.substring(start,end+1):"";
+        ensure(3,true);
+        if ( index != -1 )
+            this.stil.updateLen(index,sb.length()-stil.getOffset(index));
+        prevWasMilestone = false;
     }
     /**
      * Check if the span name is a line format
@@ -315,88 +339,75 @@ public class MMLPostHTMLHandler extends MMLPostHandler
     {
         return milestones.contains(name);
     }
+    /**
+     * Check if a paragraph or span name is a lineformat
+     * @param name the name of the property
+     * @return true if the dialect has a lineformat called name
+     */
     boolean isLineFormat( String name )
     {
-        JSONArray lfs = (JSONArray)dialect.get("lineformats");
-        for ( int i=0;i<lfs.size();i++ )
-        {
-            JSONObject lf = (JSONObject)lfs.get(i);
-            if ( name.equals((String)lf.get("prop")) )
-                return true;
-        }
-        return false;
+        return classifier.isLineFormat( name );
     }
     /**
-     * Get the text of the element
-     * @param elem the element in question
-     * @return 
+     * Get the milestones found during the parse
+     * @return their start and end offsets in sb, in order
      */
-    String getTextOf( Node elem ) 
+    private int[] milestones()
     {
-        if ( elem instanceof TextNode )
-            return ((TextNode)elem).getWholeText();
-        else if ( elem instanceof Element )
+        int[] ms = new int[milestoneRanges.size()*2];
+        for ( int i=0;i<milestoneRanges.size();i++ )
         {
-            String nName = elem.nodeName().toLowerCase();
-            // skip milestones
-            if ( nName.equals("span") 
-                && ((Element)elem).attr("class") != null 
-                && isMilestone(((Element)elem).attr("class")) )
-            {
-                int offset = sb.length();
-                String name = ((Element)elem).attr("class");
-                Range r = new Range( name, offset, 0 );
-                try
-                {
-                    pages.add(r);
-                }
-                catch ( JSONException e )
-                {
-                }
-                return getTextOf(elem.nextSibling());
-            }
-            else
-            {
-                List<Node> children = elem.childNodes();
-                StringBuilder concat = new StringBuilder();
-                for ( Node child: children )
-                {
-                    concat.append(getTextOf(child));
-                }
-                return concat.toString();
-            }
+            int index = milestoneRanges.get(i);
+            ms[i*2] = pages.getOffset(index);
+            ms[i*2+1] = ms[i*2]+pages.getLen(index);
         }
-        else
-            return "";
+        return ms;
+    }
+    /**
+     * Get the word in sb that ends just before pos
+     * @param pos the offset of the hyphen
+     * @return the previous word (maybe empty)
+     */
+    private String prevWord( int pos )
+    {
+        int i = Math.min(pos,sb.length())-1;
+        while ( i > 0 && !Character.isWhitespace(sb.charAt(i)) )
+            i--;
+        if ( i > 0 )
+            i++;
+        // at the start of sb i may still point at whitespace
+        return (i>=0)?sb.substring(i,Math.min(pos,sb.length())).trim():"";
     }
     /**
-     * Get the next word AFTER the given element
-     * @param node the node after which we seek the next word
-     * @return the word
+     * Decide which of the soft-hyphens recorded during the parse are 
+     * really hard. Done in one pass over the finished text, so the words 
+     * either side of each hyphen are read straight from sb, then all the 
+     * word pairs go to the speller in one batch.
      */
-    String nextWord( Element node )
+    protected void resolveHyphens()
     {
-        StringBuilder word = new StringBuilder();
-        Node next = node.nextSibling();
-        String text = "";
-        if ( next != null )
+        if ( hyphens.isEmpty() )
+            return;
+        String[] prev = new String[hyphens.size()];
+        String[] next = new String[hyphens.size()];
+        int[] ms = milestones();
+        int m = 0;
+        for ( int i=0;i<hyphens.size();i++ )
         {
-            if ( next instanceof TextNode )
-            {
-                text = ((TextNode)next).text();
-            }
-            else if ( next instanceof Element )
-            {
-                text = getTextOf(next);
-            }
+            int index = hyphens.get(i);
+            int offset = stil.getOffset(index);
+            while ( m < ms.length && ms[m+1] <= offset )
+                m += 2;
+            prev[i] = HyphenLexicon.clean(prevWord(offset),true);
+            next[i] = HyphenLexicon.clean(HyphenLexicon.wordAfter(sb,
+                offset+stil.getLen(index),ms,m),false);
+        }
+        boolean[] hard = this.speller.areHardHyphens( prev, next );
+        for ( int i=0;i<hard.length;i++ )
+        {
+            if ( hard[i] )
+                stil.updateName( hyphens.get(i), "hard-hyphen" );
         }
-        text = text.trim();
-        for ( int i=0;i<text.length();i++ )
-            if ( !Character.isWhitespace(text.charAt(i)) )
-                word.append(text.charAt(i));
-            else
-                break;
-        return word.toString();
     }
     /**
      * Parse a codeblock
@@ -412,7 +423,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
             if ( name == null||name.length()==0 )
                 name = "pre";
             Range r = new Range( name, offset, 0 );
-            stil.add( r );
+            int index = stil.add( r );
             if ( elem.hasAttr("class") )
             {
                 List<Node> children = elem.childNodes();
@@ -431,7 +442,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
             }
             else
                 sb.append( elem.text() );
-            this.stil.updateLen(r,sb.length()-offset);
+            this.stil.updateLen(index,sb.length()-offset);
         }
         prevWasMilestone = false;
         ensure(1,false);
@@ -451,32 +462,24 @@ public class MMLPostHTMLHandler extends MMLPostHandler
                 name = "span";
             if ( isMilestone(name) )
             {
-                pages.add(r);
+                int index = pages.add(r);
+                milestoneRanges.add(index);
                 sb.append(span.text());
                 sb.append("\n");
-                pages.updateLen(r,sb.length()-offset);
+                pages.updateLen(index,sb.length()-offset);
                 prevWasMilestone = true;
             }
             else if ( name.equals("soft-hyphen") )
             {
-                stil.add(r);
-                // get previous word
-                int i = sb.length()-1;
-                while ( i > 0 && !Character.isWhitespace(sb.charAt(i)) )
-                    i--;
-                if ( i > 0 )
-                    i++;
-                String prev = clean(sb.substring(i),true);
-                // get next word
-                String next = clean(nextWord(span),false);  
-                if ( this.speller.isHardHyphen(prev,next) )
-                    r.name = "hard-hyphen";
+                // hard or soft is decided once the text is complete
+                int index = stil.add(r);
                 sb.append(span.text());
-                stil.updateLen(r,sb.length()-offset);
+                stil.updateLen(index,sb.length()-offset);
+                hyphens.add( index );
             }
             else    // span may contain other spans
             {
-                stil.add(r);
+                int index = stil.add(r);
                 List<Node> children = span.childNodes();
                 for ( Node child: children )
                 {
@@ -496,7 +499,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
                 }
                 if ( isLineFormat(name) )
                     ensure(1,false);
-                stil.updateLen(r,sb.length()-offset);
+                stil.updateLen(index,sb.length()-offset);
             }
         }
         // else strangely no text: ignore it
@@ -510,81 +513,252 @@ public class MMLPostHTMLHandler extends MMLPostHandler
     {
         try
         {
-            this.speller = new AeseSpeller( this.langCode );
-            this.sb = new StringBuilder();
-            String style = ScratchVersionSet.getDefaultStyleName(this.docid);
-            stil = new STILDocument(style);
-            pages = new STILDocument(style);
-            if ( body.nodeName().toLowerCase().equals("div") )
-                parseDiv( body );
-            else
-            {
-                List<Node> children = body.childNodes();
-                for ( Node child: children )
-                {
-                    if ( child instanceof Element )
-                    {
-                        String nName = child.nodeName().toLowerCase();
-                        if ( nName.equals("div") )
-                            parseDiv( (Element)child);
-                        else if ( nName.equals("p") )
-                            parsePara((Element)child,"p");
-                        else if ( nName.equals("span") )
-                            parseSpan( (Element) child );
-                        else if ( nName.matches("(h|H)\\d") )
-                            parsePara( (Element) child, nName );
-                        else if ( nName.equals("pre") )
-                            parsePre( (Element) child );
-                        else
-                            parseOtherElement( (Element)child );
-
-                    }
-                   // else it is insignificant white space
-                }
-            }
-            this.speller.cleanup();
+            begin();
+            walk( body );
+            resolveHyphens();
         }
         catch ( Exception e )
         {
-            if ( this.speller != null )
-                this.speller.cleanup();
             throw new MMLSaveException( e );
         }
+        finally
+        {
+            if ( this.speller != null )
+                this.speller.release();
+        }
     }
     /**
-     * Add the archive to the database
-     * @param archive the archive
-     * @param db cortex or corcode
-     * @throws MMLException 
+     * Walk the DOM of the body, converting its contents
+     * @param body the body or target div of the editor
+     * @throws Exception 
      */
-    protected void addToDBase( Archive archive, String db, StringBuilder log ) 
-        throws MMLException
+    private void walk( Element body ) throws Exception
+    {
+        if ( body.nodeName().toLowerCase().equals("div") )
+            parseDiv( body );
+        else
+        {
+            List<Node> children = body.childNodes();
+            for ( Node child: children )
+            {
+                if ( child instanceof Element )
+                    parseTopLevel( (Element)child );
+               // else it is insignificant white space
+            }
+        }
+    }
+    /**
+     * Parse an element that is a child of the body
+     * @param child the element
+     * @throws JSONException 
+     */
+    void parseTopLevel( Element child ) throws JSONException
+    {
+        String nName = child.nodeName().toLowerCase();
+        switch ( classifier.classify(nName) )
+        {
+            case SECTION:
+                parseDiv( child );
+                break;
+            case PARA:
+                parsePara( child, "p" );
+                break;
+            case SPAN:
+                parseSpan( child );
+                break;
+            case HEADING:
+                parsePara( child, nName );
+                break;
+            case PRE:
+                parsePre( child );
+                break;
+            default:
+                parseOtherElement( child );
+                break;
+        }
+    }
+    /**
+     * Set the document this handler converts for
+     * @param docid its docid
+     */
+    void setDocid( String docid )
+    {
+        this.docid = docid;
+    }
+    /**
+     * Set up the text and markup before a parse
+     * @throws Exception if no speller could be had for the language
+     */
+    protected void begin() throws Exception
     {
+        this.classifier = new ElementClassifier( this.dialect );
+        this.speller = SpellerPool.lease( this.langCode );
+        if ( defaultStyle == null )
+            defaultStyle = ScratchVersionSet.getDefaultStyleName(this.docid);
+        reset( defaultStyle );
+    }
+    /**
+     * Clear the text and markup so the parse can start again
+     * @param style the name of the default style
+     */
+    protected void reset( String style )
+    {
+        this.sb = new StringBuilder();
+        this.prevWasMilestone = false;
+        stil = new STILDocument(style);
+        pages = new STILDocument(style);
+        hyphens = new ArrayList<Integer>();
+        milestoneRanges = new ArrayList<Integer>();
+    }
+    /**
+     * Reduce the posted document to text, STIL and page-breaks
+     * @throws Exception if the html was missing or could not be parsed
+     */
+    protected void convert() throws Exception
+    {
+        if ( html == null )
+            throw new MMLException( "Missing html");
+        begin();
         try
         {
-            // now get the json docs and add them at the right docid
-            if ( !archive.isEmpty() )
+            convertHTML();
+            resolveHyphens();
+        }
+        finally
+        {
+            this.speller.release();
+        }
+    }
+    /**
+     * Convert the html after begin()
+     * @throws Exception 
+     */
+    private void convertHTML() throws Exception
+    {
+        try
+        {
+            new SectionSplitter( this, html ).convert();
+        }
+        catch ( MMLRepairException e )
+        {
+            // too broken to stream: let jsoup build the tree
+            reset( stil.getStyle() );
+            walk( Jsoup.parseBodyFragment(html).body() );
+        }
+    }
+    /**
+     * Look up the blocks that refer to the base save and publish this 
+     * save's blocks at once, so that the next save can refer to them 
+     * even before they are converted
+     * @return false if the blocks refer to a save we no longer have
+     * @throws Exception 
+     */
+    protected boolean resolveBlocks() throws Exception
+    {
+        SavedBlocks prev = null;
+        ArrayList<SectionSplitter.Chunk> prevParts = null;
+        if ( base != null )
+        {
+            prev = SavedBlocks.get( docid, version1 );
+            if ( prev == null || !prev.rev.equals(base) )
+                return false;
+            prevParts = prev.parts;
+        }
+        ArrayList<String> texts = new ArrayList<String>();
+        ArrayList<SectionSplitter.Chunk> old = 
+            new ArrayList<SectionSplitter.Chunk>();
+        for ( int i=0;i<blocks.size();i++ )
+        {
+            Object block = blocks.get( i );
+            if ( block instanceof String )
+            {
+                texts.add( (String)block );
+                old.add( null );
+            }
+            else if ( block instanceof Number && prev != null )
             {
-                String path = new String(docid);
-                if ( db.equals(Database.CORCODE) )
-                    path += "/default";
-                Connector.getConnection().putToDb( db, path, 
-                    archive.toResource(db) );
-                log.append( archive.getLog() );
+                int index = ((Number)block).intValue();
+                if ( index < 0 || index >= prev.html.size() )
+                    return false;
+                texts.add( prev.html.get(index) );
+                old.add( prevParts.get(index) );
             }
             else
-                log.append("No "+db+" created (empty)\n");
+                throw new MMLException("Invalid block "+block);
         }
-        catch ( Exception e )
+        // until converted the old conversions stand in for the new
+        saving = new SavedBlocks( texts, old );
+        SavedBlocks.put( docid, version1, saving );
+        return true;
+    }
+    /**
+     * Convert a document posted as blocks, converting only those that 
+     * are new or now follow different text
+     * @throws Exception 
+     */
+    protected void convertBlocks() throws Exception
+    {
+        begin();
+        try
         {
-            throw new MMLException( e );
+            ArrayList<SectionSplitter.Chunk> parts = 
+                SectionSplitter.convertBlocks( this, saving.html, 
+                saving.parts );
+            if ( parts == null )
+            {
+                StringBuilder all = new StringBuilder();
+                for ( String text : saving.html )
+                    all.append( text );
+                html = all.toString();
+                reset( stil.getStyle() );
+                convertHTML();
+            }
+            resolveHyphens();
+            saving.setParts( parts );
+        }
+        finally
+        {
+            this.speller.release();
+        }
+    }
+    /**
+     * Add an archive to a batch of scratch writes
+     * @param archive the archive
+     * @param path the docid to store it under
+     * @param batch the writes to be sent together
+     * @param log record messages here
+     * @param expected the revision the record should still have
+     * @param next the revision to give it
+     * @return true if it was added, false if it was empty
+     * @throws MMLException 
+     */
+    protected boolean addToDBase( Archive archive, String path, 
+        ScratchBatch batch, StringBuilder log, long expected, long next ) 
+        throws MMLException
+    {
+        if ( !archive.isEmpty() )
+        {
+            batch.put( path, archive.toResource(Database.SCRATCH), next, 
+                expected );
+            log.append( archive.getLog() );
+            return true;
+        }
+        else
+        {
+            log.append("No "+Database.SCRATCH+" created (empty)\n");
+            return false;
         }
     }
     /**
      * Save the cortex to the scratch collection
+     * @param batch the writes to be sent together
      * @param log record message here
+     * @param expected the revision the record should still have
+     * @param next the revision to give it
+     * @return true if there was a cortex to save
      */
-    private void saveCortex( StringBuilder log ) throws DbException
+    private boolean saveCortex( ScratchBatch batch, StringBuilder log, 
+        long expected, long next ) throws DbException
     {
         try
         {
@@ -596,11 +770,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
             if ( style != null )
                 cortex.setStyle( style );
             cortex.put( version1, sb.toString().toCharArray() );
-            Connection conn = Connector.getConnection();
-            String res = conn.getFromDb(Database.SCRATCH,docid);
-            if ( res != null )
-                conn.removeFromDb(Database.SCRATCH,docid);
-            addToDBase( cortex, Database.SCRATCH, log );
+            return addToDBase( cortex, docid, batch, log, expected, next );
         }
         catch ( Exception e )
         {
@@ -609,9 +779,14 @@ public class MMLPostHTMLHandler extends MMLPostHandler
     }
     /**
      * Save the corcode to the temporary scratch collection
+     * @param batch the writes to be sent together
+     * @param log record message here
+     * @param expected the revision the record should still have
+     * @param next the revision to give it
      * @throws DbException 
      */
-    private void saveCorcode( StringBuilder log ) throws DbException
+    private void saveCorcode( ScratchBatch batch, StringBuilder log, 
+        long expected, long next ) throws DbException
     {
         try
         {
@@ -622,13 +797,9 @@ public class MMLPostHTMLHandler extends MMLPostHandler
             if ( description != null )
                 corcode.addLongName( version1, description );
             corcode.setStyle( style );
-            corcode.put( version1, stil.toString().toCharArray() );
-            Connection conn = Connector.getConnection();
-            String ccDocId = docid+"/default";
-            String res = conn.getFromDb(Database.SCRATCH,ccDocId);
-            if ( res != null )
-                conn.removeFromDb(Database.SCRATCH,ccDocId);
-            addToDBase( corcode, Database.SCRATCH, log );
+            corcode.put( version1, stil.toCharArray() );
+            addToDBase( corcode, docid+"/default", batch, log, expected, 
+                next );
         }
         catch ( Exception e )
         {
@@ -636,11 +807,13 @@ public class MMLPostHTMLHandler extends MMLPostHandler
         }
     }
     /**
-     * Write metadata to scratch space
+     * Write metadata to scratch space, unless something is already there
+     * @param batch the writes to be sent together
      * @param log track log messages here
      * @throws MMLException 
      */
-    void saveMetadata( StringBuilder log ) throws MMLException
+    void saveMetadata( ScratchBatch batch, StringBuilder log ) 
+        throws MMLException
     {
         try
         {
@@ -655,8 +828,7 @@ public class MMLPostHTMLHandler extends MMLPostHandler
                 metadata.put(JSONKeys.SECTION,this.section);
                 metadata.put(JSONKeys.TITLE,this.title);
                 metadata.put(JSONKeys.VERSION1,this.version1);
-                md = metadata.toJSONString();
-                log.append(conn.putToDb(Database.SCRATCH,this.docid,md));
+                batch.put(Database.SCRATCH,this.docid,metadata.toJSONString());
             }
         }
         catch ( Exception e )
@@ -665,7 +837,14 @@ public class MMLPostHTMLHandler extends MMLPostHandler
         }
     }
     /**
-     * Handle the request by writing everything out to scratch space
+     * Handle the request by writing everything out to scratch space. 
+     * Unless this is the only save of its version in progress and there 
+     * is no debounce, it is saved later and we answer 202 at once. If the 
+     * last save answered that way failed, this one is refused with 500. 
+     * A save that names the revision it was based on is made at once, and 
+     * answered with the new revision, or with 409 and the current one if 
+     * someone else saved first. If blocks were posted their revision id 
+     * comes first, on a line of its own.
      * @param request
      * @param response
      * @param urn
@@ -677,34 +856,136 @@ public class MMLPostHTMLHandler extends MMLPostHandler
         try
         {
             parseRequest( request );
-            StringBuilder log = new StringBuilder();
-            System.out.println(html);
-            Document doc = Jsoup.parseBodyFragment(html);
-            Element body = doc.body();  
-            parseBody( body );
-            int totalWait = 0;
-            while ( Autosave.inProgress && totalWait < 100000 )
+            if ( blocks != null && !resolveBlocks() )
             {
-                Thread.sleep(4000);
-                totalWait += 400;
+                response.setStatus( HttpServletResponse.SC_CONFLICT );
+                response.getWriter().write( "Base "+base+" not found" );
+                return;
             }
-            if ( totalWait >= 100000 )
-                throw new DbException("Save timed out");
-            if ( !Autosave.inProgress )
+            String failure = SaveQueue.failure( docid, version1 );
+            if ( failure != null )
+            {
+                // not saved: the client must send its content again
+                response.setStatus( 
+                    HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+                response.getWriter().write( "Queued save failed: "
+                    +failure );
+                return;
+            }
+            long saved = -1;
+            SaveQueue.Slot slot = null;
+            // its client needs the new revision back, so it can't wait
+            if ( rev >= 0 )
+                saved = save();
+            else if ( (slot=SaveQueue.enter(docid,version1,this)) != null )
+            {
+                try
+                {
+                    save();
+                }
+                finally
+                {
+                    SaveQueue.leave( slot );
+                }
+            }
+            else
+                response.setStatus( HttpServletResponse.SC_ACCEPTED );
+            response.setContentType("text/plain");
+            StringBuilder reply = new StringBuilder();
+            if ( saving != null )
+                // the next save may now send only what has changed
+                reply.append( saving.rev );
+            if ( rev >= 0 )
+            {
+                if ( reply.length() > 0 )
+                    reply.append( "\n" );
+                reply.append( saved );
+            }
+            else if ( slot == null && saving == null )
+                reply.append( "Save queued" );
+            response.getWriter().write( reply.toString() );
+        }
+        catch ( MMLConflictException e )
+        {
+            // someone else saved it first: send back their revision
+            response.setStatus( HttpServletResponse.SC_CONFLICT );
+            response.setContentType("text/plain");
+            try
             {
-                Autosave.lock = true;
-                saveCortex(log);
-                saveCorcode(log);
-                saveMetadata(log);
-                Autosave.lock = false;
+                response.getWriter().write( Long.toString(e.getRev()) );
             }
+            catch ( IOException ioe )
+            {
+                throw new MMLException(ioe);
+            }
+        }
+        catch ( Exception e )
+        {
+            System.out.println(e.getMessage());
+            throw new MMLException(e);
+        }
+    }
+    /**
+     * Convert the posted document and write everything out to scratch. 
+     * The cortex and corcode records are locked while they are checked 
+     * and written, and both get the same new revision.
+     * @return the revision they now have
+     * @throws MMLConflictException if a record was saved after rev
+     * @throws MMLException 
+     */
+    long save() throws MMLException
+    {
+        ArrayList<Revisions.Slot> slots = new ArrayList<Revisions.Slot>();
+        try
+        {
+            StringBuilder log = new StringBuilder();
+            if ( blocks == null )
+                convert();
+            else
+                convertBlocks();
+            // the cortex's docid sorts first: lock in that order
+            String[] paths = { docid, docid+"/default" };
+            long[] cur = new long[paths.length];
+            long latest = -1;
+            for ( int i=0;i<paths.length;i++ )
+            {
+                slots.add( Revisions.lock(paths[i]) );
+                cur[i] = Revisions.current( slots.get(i) );
+                if ( rev >= 0 && cur[i] > rev )
+                    throw new MMLConflictException( paths[i]
+                        +" is at revision "+cur[i]+" not "+rev, cur[i] );
+                latest = Math.max( latest, cur[i] );
+            }
+            // never behind the revision the client was sent
+            long next = Math.max( latest, rev )+1;
+            ScratchBatch batch = new ScratchBatch();
+            // the cortex goes where the metadata would
+            if ( !saveCortex(batch,log,cur[0],next) )
+                saveMetadata(batch,log);
+            saveCorcode(batch,log,cur[1],next);
+            boolean changed = batch.size() > 0;
+            log.append( batch.commit() );
             System.out.println( log.toString() );
+            return (changed)?next:latest;
+        }
+        catch ( MMLException e )
+        {
+            System.out.println(e.getMessage());
+            throw e;
         }
         catch ( Exception e )
         {
             System.out.println(e.getMessage());
-            Autosave.lock = false;
             throw new MMLException(e);
         }
+        finally
+        {
+            // records left unchanged keep their revisions: read them again
+            for ( Revisions.Slot slot : slots )
+            {
+                Revisions.forget( slot );
+                Revisions.unlock( slot );
+            }
+        }
     }
 }
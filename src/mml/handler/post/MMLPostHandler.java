@@ -16,7 +16,7 @@
  *  (c) copyright Desmond Schmidt 2014
  */
 package mml.handler.post;
-import calliope.AeseSpeller;
+import mml.speller.SpellerPool.PooledSpeller;
 import java.io.InputStream;
 
 import mml.exception.*;
@@ -45,9 +45,10 @@ import org.json.simple.JSONValue;
  */
 public class MMLPostHandler extends MMLHandler
 {
-    AeseSpeller speller;
+    PooledSpeller speller;
     InetAddress poster;
     String html;
+    String mml;
     StringBuilder sb;
     STILDocument stil;
     STILDocument pages;
@@ -189,6 +190,8 @@ public class MMLPostHandler extends MMLHandler
             urn = Utils.pop(urn);
             if ( service.equals(Service.HTML) )
                 new MMLPostHTMLHandler().handle(request,response,urn);
+            else if ( service.equals(Service.MML) )
+                new MMLPostMMLHandler().handle(request,response,urn);
             else if ( service.equals(Service.IMPORT) )
                 new MMLPostImportHandler().handle(request,response,urn);
             else if ( service.equals(Service.VERSION) )
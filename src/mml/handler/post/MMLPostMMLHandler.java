@@ -0,0 +1,59 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import javax.servlet.http.HttpServletRequest;
+import mml.exception.MMLException;
+
+/**
+ * Save raw MML text. The text is formatted into HTML exactly as the 
+ * editor does it and then streamed through the same conversion as 
+ * posted HTML, so the two always save the same cortex and corcode.
+ * @author desmond
+ */
+public class MMLPostMMLHandler extends MMLPostHTMLHandler
+{
+    /**
+     * Read the request. MML is always posted whole, never as blocks.
+     * @param request the http request
+     * @throws Exception if the mml is missing or blocks were posted
+     */
+    @Override
+    void parseRequest( HttpServletRequest request ) throws Exception
+    {
+        super.parseRequest( request );
+        if ( blocks != null || base != null )
+            throw new MMLException("Blocks can't be posted as mml");
+        if ( mml == null )
+            throw new MMLException("Missing mml");
+    }
+    /**
+     * Convert the posted MML instead of HTML
+     * @throws Exception if the mml was missing or could not be parsed
+     */
+    @Override
+    protected void convert() throws Exception
+    {
+        if ( mml == null )
+            throw new MMLException("Missing mml");
+        // as a textarea gives it to formatter.js
+        String text = mml.replace("\r\n","\n").replace('\r','\n');
+        html = new MMLFormatter( dialect ).toHTML( text );
+        super.convert();
+    }
+}
@@ -23,19 +23,26 @@ import calliope.core.exception.DbException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import mml.exception.MMLException;
+import mml.exception.MMLConflictException;
 import mml.handler.get.MMLGetDialectHandler;
 import org.json.simple.JSONValue;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONArray;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
 import mml.handler.scratch.*;
 import calliope.core.constants.Database;
 import calliope.core.database.Connection;
 import calliope.core.database.Connector;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URLDecoder;
-import mml.handler.json.STILDocument;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import mml.Pools;
 /**
  * Post a version of an MVD composed of layers
  * @author desmond
@@ -43,6 +50,30 @@ import mml.handler.json.STILDocument;
 public class MMLPostVersionHandler extends MMLPostHTMLHandler
 {
     String longName;
+    /**
+     * One layer converted by a handler of its own
+     */
+    class Layer implements Callable<Layer>
+    {
+        String name;
+        MMLPostHTMLHandler part;
+        Layer( String name, String html )
+        {
+            this.name = name;
+            part = new MMLPostHTMLHandler();
+            part.setDocid( docid );
+            part.dialect = dialect;
+            part.langCode = langCode;
+            part.html = html;
+        }
+        public Layer call() throws Exception
+        {
+            // reduce html to text, corcode-default and corcode-pages
+            part.convert();
+            part.html = null;
+            return this;
+        }
+    }
     /**
      * Find the closest matching doialect for the current docid
      * @return a JSON =Object
@@ -75,6 +106,180 @@ public class MMLPostVersionHandler extends MMLPostHTMLHandler
             throw e;
         }
     }
+    /**
+     * Open the JSON "data" of the request without reading it all in
+     * @param request the raw request
+     * @return a reader of the JSON or null if there was none
+     * @throws IOException 
+     */
+    private Reader openData( HttpServletRequest request ) throws IOException
+    {
+        String type = request.getContentType();
+        String charset = request.getCharacterEncoding();
+        if ( charset == null )
+            charset = "UTF-8";
+        if ( type != null && type.startsWith("application/json") )
+            return request.getReader();
+        else if ( type != null 
+            && type.startsWith("application/x-www-form-urlencoded") )
+        {
+            BufferedReader r = new BufferedReader( new InputStreamReader(
+                new FormValueStream(request.getInputStream(),"data"),
+                charset) );
+            r.mark( 1 );
+            if ( r.read() != -1 )
+            {
+                r.reset();
+                return r;
+            }
+            // perhaps it was in the query string
+        }
+        String value = request.getParameter("data");
+        return (value==null)?null:new StringReader(value);
+    }
+    /**
+     * Pick the version's details and layers out of the JSON as it is 
+     * parsed, starting each layer's conversion as soon as it is complete
+     */
+    class LayerReader implements ContentHandler
+    {
+        /** number of objects and arrays we are inside */
+        int depth;
+        /** the current key of the outer object */
+        String key;
+        /** the current key of a layer */
+        String layerKey;
+        boolean inLayers;
+        String name;
+        String body;
+        /** layers read before the docid */
+        ArrayList<Layer> pending = new ArrayList<Layer>();
+        ArrayList<Future<Layer>> futures = new ArrayList<Future<Layer>>();
+        /** the first thing that went wrong */
+        Exception error;
+        /**
+         * Start converting the layers that had to wait for the docid
+         */
+        void submitPending() throws DbException, MMLException
+        {
+            if ( dialect == null )
+                dialect = getDialectFromDocid();
+            // one lookup for all the layers
+            if ( defaultStyle == null )
+                defaultStyle = ScratchVersionSet.getDefaultStyleName( docid );
+            for ( Layer layer : pending )
+            {
+                layer.part.setDocid( docid );
+                layer.part.dialect = dialect;
+                layer.part.defaultStyle = defaultStyle;
+                futures.add( Pools.IO.submit(layer) );
+            }
+            pending.clear();
+        }
+        /**
+         * A layer has been read
+         */
+        private void addLayer() throws DbException, MMLException
+        {
+            Layer layer = new Layer( name, body );
+            name = body = null;
+            pending.add( layer );
+            if ( docid != null )
+                submitPending();
+        }
+        public void startJSON()
+        {
+        }
+        public void endJSON()
+        {
+        }
+        public boolean startObject()
+        {
+            depth++;
+            if ( depth == 3 && inLayers )
+                name = body = null;
+            return true;
+        }
+        public boolean endObject()
+        {
+            try
+            {
+                if ( depth == 3 && inLayers )
+                    addLayer();
+                depth--;
+                return true;
+            }
+            catch ( Exception e )
+            {
+                error = e;
+                return false;
+            }
+        }
+        public boolean startObjectEntry( String k )
+        {
+            if ( depth == 1 )
+                key = k;
+            else if ( depth == 3 )
+                layerKey = k;
+            return true;
+        }
+        public boolean endObjectEntry()
+        {
+            if ( depth == 3 )
+                layerKey = null;
+            return true;
+        }
+        public boolean startArray()
+        {
+            depth++;
+            if ( depth == 2 && "layers".equals(key) )
+                inLayers = true;
+            return true;
+        }
+        public boolean endArray()
+        {
+            if ( depth == 2 )
+                inLayers = false;
+            depth--;
+            return true;
+        }
+        public boolean primitive( Object value )
+        {
+            if ( depth == 1 && JSONKeys.REV.equals(key) && value != null )
+            {
+                try
+                {
+                    rev = Long.parseLong( value.toString() );
+                }
+                catch ( NumberFormatException e )
+                {
+                    error = e;
+                    return false;
+                }
+                return true;
+            }
+            if ( !(value instanceof String) )
+                return true;
+            String str = (String)value;
+            if ( depth == 1 )
+            {
+                if ( JSONKeys.VERSION1.equals(key) )
+                    version1 = str;
+                else if ( JSONKeys.LONGNAME.equals(key) )
+                    longName = str;
+                else if ( JSONKeys.DOCID.equals(key) )
+                    docid = str;
+            }
+            else if ( depth == 3 && inLayers && layerKey != null )
+            {
+                if ( layerKey.equals(JSONKeys.NAME) )
+                    name = str;
+                else if ( layerKey.equals(JSONKeys.BODY) )
+                    body = str;
+            }
+            return true;
+        }
+    }
     /**
      * Handle a POST request
      * @param request the raw request
@@ -85,21 +290,23 @@ public class MMLPostVersionHandler extends MMLPostHTMLHandler
     public void handle( HttpServletRequest request, 
         HttpServletResponse response, String urn ) throws MMLException
     {
+        LayerReader reader = null;
         try
         {
-            String value = request.getParameter("data");
-            if ( value != null )
+            Reader data = openData( request );
+            if ( data != null )
             {
-                JSONObject jObj = (JSONObject) JSONValue.parse(value);
-                this.version1 = (String)jObj.get(JSONKeys.VERSION1);
+                reader = new LayerReader();
+                new JSONParser().parse( data, reader );
+                if ( reader.error != null )
+                    throw reader.error;
+                if ( docid == null )
+                    throw new MMLException("Missing docid");
+                reader.submitPending();
                 if ( version1==null )
                     version1 = "/base";
                 else
                     version1 = URLDecoder.decode(version1,"UTF-8");
-                this.longName = (String)jObj.get(JSONKeys.LONGNAME);                
-                this.docid = (String)jObj.get(JSONKeys.DOCID);
-                this.dialect = getDialectFromDocid();
-                JSONArray layers = (JSONArray)jObj.get("layers");
                 ScratchVersion corcodeDefault = new ScratchVersion(
                     version1, longName, docid+"/default", 
                     Database.CORCODE,null, true);
@@ -108,32 +315,40 @@ public class MMLPostVersionHandler extends MMLPostHTMLHandler
                     Database.CORCODE,null,true);
                 ScratchVersion text = new ScratchVersion(version1, 
                     longName, docid, Database.CORTEX,null,true);
-                this.style = ScratchVersionSet.getDefaultStyleName(docid);
-                for ( int i=0;i<layers.size();i++ )
+                for ( Future<Layer> f : reader.futures )
                 {
-                    JSONObject layer = (JSONObject)layers.get(i);
-                    String name = (String)layer.get(JSONKeys.NAME);
-                    String html = (String)layer.get(JSONKeys.BODY);
-                    stil = new STILDocument(style);
-                    pages = new STILDocument(style);
-                    // reduce html to text, corcode-default and corcode-pages
-                    Document doc = Jsoup.parseBodyFragment(html);
-                    Element body = doc.body();  
-                    parseBody( body );
-                    int num = ScratchVersion.layerNumber(name);
-                    text.addLayer(sb.toString().toCharArray(),num);
-                    corcodeDefault.addLayer(stil.toString().toCharArray(),num);
-                    corcodePages.addLayer(pages.toString().toCharArray(),num);               
+                    Layer layer = Pools.join( f );
+                    int num = ScratchVersion.layerNumber(layer.name);
+                    text.addLayer(layer.part.sb,num);
+                    corcodeDefault.addLayer(layer.part.stil.toCharArray(),num);
+                    corcodePages.addLayer(layer.part.pages.toCharArray(),num);
                 }
-                Scratch.save(text);
-                Scratch.save(corcodeDefault);
-                Scratch.save(corcodePages);
+                long saved = Scratch.saveAll( rev, text, corcodeDefault, 
+                    corcodePages );
                 response.setContentType("text/plain");
-                response.getWriter().write("OK");
+                // clients that send a revision need the new one back
+                response.getWriter().write( (rev>=0)?Long.toString(saved):"OK" );
+            }
+        }
+        catch ( MMLConflictException e )
+        {
+            // someone else saved it first: send back their revision
+            response.setStatus( HttpServletResponse.SC_CONFLICT );
+            response.setContentType("text/plain");
+            try
+            {
+                response.getWriter().write( Long.toString(e.getRev()) );
+            }
+            catch ( IOException ioe )
+            {
+                throw new MMLException(ioe);
             }
         }
         catch ( Exception e )
         {
+            // don't leave the other layers converting for nothing
+            if ( reader != null )
+                Pools.cancel( reader.futures );
             System.out.println(e.getMessage());
             throw new MMLException(e);
         }
@@ -0,0 +1,170 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesce saves of the same document and version. Saves of a version 
+ * are converted and written one at a time. One that arrives while 
+ * another is in progress, or while the debounce runs, waits in its 
+ * version's slot, where a later save replaces it before it is converted, 
+ * so the latest content always wins. Waiting saves are converted on a 
+ * timer thread, so no request thread sleeps or waits for another save. 
+ * Their requests have already been answered, so if one fails the next 
+ * save of that version is told instead.
+ * @author desmond
+ */
+public class SaveQueue 
+{
+    /** milliseconds to wait for a later save before converting */
+    public static int debounce = 0;
+    /** slots of versions being saved, by docid and version */
+    static HashMap<String,Slot> slots = new HashMap<String,Slot>();
+    /** why the last waiting save of a version failed, by docid and version */
+    static HashMap<String,String> failures = new HashMap<String,String>();
+    /** number of timer threads made so far */
+    static AtomicInteger threads = new AtomicInteger();
+    /** runs the saves that waited */
+    static ScheduledExecutorService timer = 
+        Executors.newScheduledThreadPool( 
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "mml-save-"
+                    +threads.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        });
+    /**
+     * A version with a save in progress or waiting
+     */
+    static class Slot implements Runnable
+    {
+        String key;
+        /** the save waiting to be converted or null */
+        MMLPostHTMLHandler latest;
+        Slot( String key )
+        {
+            this.key = key;
+        }
+        /**
+         * Convert and write the latest save
+         */
+        public void run()
+        {
+            MMLPostHTMLHandler save = take( this );
+            try
+            {
+                save.save();
+                failed( key, null );
+            }
+            catch ( Exception e )
+            {
+                // its request has already been answered
+                failed( key, (e.getMessage()!=null)?e.getMessage()
+                    :e.toString() );
+            }
+            finally
+            {
+                leave( this );
+            }
+        }
+    }
+    /**
+     * Offer a save to the queue of its version
+     * @param docid its docid
+     * @param version the version being saved
+     * @param save the new save
+     * @return the slot, to be passed to leave() after saving at once, 
+     * or null if the save will be made later, unless a later one replaces it
+     */
+    static synchronized Slot enter( String docid, String version, 
+        MMLPostHTMLHandler save )
+    {
+        String key = docid+"#"+version;
+        Slot slot = slots.get( key );
+        if ( slot != null )
+        {
+            // the save in progress will start on it when done
+            slot.latest = save;
+            return null;
+        }
+        slot = new Slot( key );
+        slots.put( key, slot );
+        if ( debounce > 0 )
+        {
+            slot.latest = save;
+            timer.schedule( slot, debounce, TimeUnit.MILLISECONDS );
+            return null;
+        }
+        else
+            return slot;
+    }
+    /**
+     * Record how the last waiting save of a version went
+     * @param key its docid and version
+     * @param message why it failed or null if it didn't
+     */
+    private static synchronized void failed( String key, String message )
+    {
+        if ( message == null )
+            failures.remove( key );
+        else
+            failures.put( key, message );
+    }
+    /**
+     * Get and forget why the last waiting save of a version failed
+     * @param docid its docid
+     * @param version the version saved
+     * @return the reason or null if it didn't fail
+     */
+    static synchronized String failure( String docid, String version )
+    {
+        return failures.remove( docid+"#"+version );
+    }
+    /**
+     * Take the save waiting in a slot
+     * @param slot the slot
+     * @return the save
+     */
+    private static synchronized MMLPostHTMLHandler take( Slot slot )
+    {
+        MMLPostHTMLHandler save = slot.latest;
+        slot.latest = null;
+        return save;
+    }
+    /**
+     * Finish a save. If another arrived meanwhile schedule it, otherwise 
+     * drop the slot.
+     * @param slot the slot of the save
+     */
+    static synchronized void leave( Slot slot )
+    {
+        if ( slot.latest == null )
+            slots.remove( slot.key );
+        else
+            timer.schedule( slot, debounce, TimeUnit.MILLISECONDS );
+    }
+}
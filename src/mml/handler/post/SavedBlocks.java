@@ -0,0 +1,100 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The blocks of a recently saved version with their conversions, so 
+ * that the next save need only send and convert the blocks that changed. 
+ * Each save gets a new revision id, which the next save names as its base.
+ * The scratch records are still written whole, though unchanged ones 
+ * are left out of the batch.
+ * @author desmond
+ */
+public class SavedBlocks 
+{
+    /** the most documents kept */
+    static final int MAX_DOCS = 64;
+    /** the last save of each docid#version, least recently used first */
+    static LinkedHashMap<String,SavedBlocks> saved = 
+        new LinkedHashMap<String,SavedBlocks>(16,0.75f,true) {
+            protected boolean removeEldestEntry( 
+                Map.Entry<String,SavedBlocks> eldest )
+            {
+                return size() > MAX_DOCS;
+            }
+        };
+    /** the id of this save */
+    String rev;
+    /** the HTML of each block */
+    ArrayList<String> html;
+    /** the conversion of each block, or null if converted together */
+    volatile ArrayList<SectionSplitter.Chunk> parts;
+    /**
+     * Record the blocks of a save
+     * @param html the HTML of each block
+     * @param parts their conversions, or earlier ones of the same blocks, 
+     * or null if they had to be converted as one document
+     */
+    SavedBlocks( ArrayList<String> html, ArrayList<SectionSplitter.Chunk> parts )
+    {
+        this.rev = UUID.randomUUID().toString();
+        this.html = html;
+        setParts( parts );
+    }
+    /**
+     * Replace the conversions once the blocks have been converted
+     * @param parts their conversions or null if they had to be converted 
+     * as one document
+     */
+    void setParts( ArrayList<SectionSplitter.Chunk> parts )
+    {
+        if ( parts == null )
+        {
+            parts = new ArrayList<SectionSplitter.Chunk>();
+            for ( int i=0;i<html.size();i++ )
+                parts.add( null );
+        }
+        this.parts = parts;
+    }
+    /**
+     * Get the last save of a version
+     * @param docid the document's docid
+     * @param version the version saved
+     * @return its blocks or null if we don't have them
+     */
+    static synchronized SavedBlocks get( String docid, String version )
+    {
+        return saved.get( docid+"#"+version );
+    }
+    /**
+     * Remember the last save of a version
+     * @param docid the document's docid
+     * @param version the version saved
+     * @param blocks its blocks
+     */
+    static synchronized void put( String docid, String version, 
+        SavedBlocks blocks )
+    {
+        saved.put( docid+"#"+version, blocks );
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.post;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import mml.Pools;
+import mml.exception.MMLRepairException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+
+/**
+ * Convert a large HTML document in parallel. The document is cut just 
+ * before paragraphs and sections that follow a closed paragraph, heading 
+ * or section, each chunk is converted into its own text and ranges, and 
+ * the chunks are stitched back together. Each chunk guesses the state 
+ * the one before it will leave behind: the sections still open, the 
+ * newlines at the end of the text and whether a milestone came last. 
+ * Where the guess was wrong the chunk is converted again once the true 
+ * state is known, so the result is always the same as converting the 
+ * whole document in one pass. A chunk too broken to stream is parsed on 
+ * its own by jsoup, so the other chunks are still streamed.
+ * @author desmond
+ */
+public class SectionSplitter 
+{
+    /** the smallest chunk worth converting on its own */
+    static int minChunk = 32768;
+    /** the comment at the end of a chunk parsed by jsoup */
+    static final String MARK = "mml-end";
+    MMLPostHTMLHandler h;
+    String html;
+    /**
+     * A place where the document may be cut
+     */
+    static class Cut
+    {
+        /** offset of the "<" of the tag that starts the chunk */
+        int pos;
+        /** the number of divs probably still open there */
+        int divs;
+        /** the number of newlines probably at the end of the text */
+        int nls;
+        Cut( int pos, int divs, int nls )
+        {
+            this.pos = pos;
+            this.divs = divs;
+            this.nls = nls;
+        }
+    }
+    /**
+     * One chunk of the document and its conversion
+     */
+    static class Chunk implements Callable<Chunk>
+    {
+        String text;
+        int divs;
+        /** the end of the text before the chunk, or a guess at it */
+        String prefix;
+        /** whether a milestone was taken to come just before the chunk */
+        boolean wasMilestone;
+        boolean last;
+        MMLPostHTMLHandler part;
+        HTMLConverter conv;
+        Chunk( MMLPostHTMLHandler h, String text, int divs, String prefix, 
+            boolean prevWasMilestone, boolean last )
+        {
+            this.text = text;
+            this.divs = divs;
+            this.prefix = prefix;
+            this.wasMilestone = prevWasMilestone;
+            this.last = last;
+            part = new MMLPostHTMLHandler();
+            part.dialect = h.dialect;
+            part.classifier = h.classifier;
+            part.reset( h.stil.getStyle() );
+            part.sb.append( prefix );
+            part.prevWasMilestone = prevWasMilestone;
+        }
+        public Chunk call() throws Exception
+        {
+            try
+            {
+                conv = new HTMLConverter( part );
+                conv.start( divs );
+                conv.feed( new StringReader(text) );
+                if ( last )
+                    conv.finish();
+            }
+            catch ( MMLRepairException e )
+            {
+                part.reset( part.stil.getStyle() );
+                part.sb.append( prefix );
+                part.prevWasMilestone = wasMilestone;
+                repair();
+            }
+            conv.tokens = null;
+            return this;
+        }
+        /**
+         * Convert the chunk with jsoup. A div stands in for the section 
+         * an earlier chunk left open (only one can be handed on). Unless 
+         * this is the last chunk a comment and some text are put at the 
+         * end: the comment's ancestors are the elements still open and if 
+         * the text is not beside it formatting elements would be reopened.
+         * Then the next chunk can't inherit, so the text does no harm.
+         */
+        private void repair() throws Exception
+        {
+            String html = (divs>0)?"<div>"+text:text;
+            if ( !last )
+                html += "<!--"+MARK+"-->x";
+            Element body = Jsoup.parseBodyFragment(html).body();
+            Element inherited = (divs>0)?body.child(0):null;
+            ArrayList<Element> stillOpen = new ArrayList<Element>();
+            conv = new HTMLConverter( part );
+            conv.start( divs );
+            if ( !last )
+            {
+                Comment mark = findMark( body );
+                if ( mark == null )     // swallowed by a script etc
+                    conv.active.add( null );
+                else
+                {
+                    for ( Element e=(Element)mark.parent();e!=body;
+                        e=e.parent() )
+                        stillOpen.add( 0, e );
+                    Node next = mark.nextSibling();
+                    if ( next instanceof TextNode 
+                        && ((TextNode)next).getWholeText().equals("x") )
+                        next.remove();
+                    else
+                        conv.active.add( null );
+                    mark.remove();
+                }
+            }
+            for ( Node child : body.childNodes() )
+            {
+                if ( !(child instanceof Element) )
+                    continue;
+                Element elem = (Element)child;
+                if ( elem == inherited )
+                {
+                    part.parseSection( elem );
+                    if ( !stillOpen.contains(elem) )
+                    {
+                        part.closeDiv( -1 );
+                        conv.inherited.get(0).end = part.sb.length();
+                        conv.open.remove( 1 );
+                    }
+                }
+                else if ( !stillOpen.isEmpty() && stillOpen.get(0) == elem
+                    && part.classifier.classify(elem.nodeName())
+                    == ElementClassifier.Action.SECTION )
+                {
+                    HTMLConverter.Element e = new HTMLConverter.Element(
+                        "div", null, conv.open.get(0) );
+                    e.kind = HTMLConverter.DIV;
+                    e.offset = part.sb.length();
+                    e.index = part.openDiv( elem );
+                    e.onStack = true;
+                    part.parseSection( elem );
+                    conv.open.add( e );
+                }
+                else
+                    part.parseTopLevel( elem );
+            }
+            // anything else left open stops the next chunk inheriting
+            for ( int i=0;i<stillOpen.size();i++ )
+            {
+                Element e = stillOpen.get( i );
+                if ( i > 0 || (e != inherited && conv.open.size() == 1) )
+                    conv.open.add( new HTMLConverter.Element(e.nodeName(),
+                        null,conv.open.get(conv.open.size()-1)) );
+            }
+        }
+    }
+    /**
+     * Find the comment put at the end of a chunk
+     * @param node the node to search
+     * @return the comment or null
+     */
+    private static Comment findMark( Node node )
+    {
+        for ( Node child : node.childNodes() )
+        {
+            if ( child instanceof Comment )
+            {
+                if ( ((Comment)child).getData().equals(MARK) )
+                    return (Comment)child;
+            }
+            else
+            {
+                Comment c = findMark( child );
+                if ( c != null )
+                    return c;
+            }
+        }
+        return null;
+    }
+    /**
+     * Create a splitter
+     * @param h the handler whose text and ranges will receive the result
+     * @param html the whole document
+     */
+    SectionSplitter( MMLPostHTMLHandler h, String html )
+    {
+        this.h = h;
+        this.html = html;
+    }
+    /**
+     * Convert the document into the handler's text, STIL and pages
+     * @throws Exception an MMLRepairException if the HTML needs the DOM
+     */
+    void convert() throws Exception
+    {
+        int nChunks = Math.min( Runtime.getRuntime().availableProcessors(),
+            html.length()/minChunk );
+        ArrayList<Cut> cuts = (nChunks>1)?chooseCuts(nChunks)
+            :new ArrayList<Cut>();
+        if ( cuts.isEmpty() )
+        {
+            new HTMLConverter( h ).convert( new StringReader(html) );
+            return;
+        }
+        ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+        int from = 0;
+        for ( int i=0;i<=cuts.size();i++ )
+        {
+            Cut prev = (i==0)?null:cuts.get(i-1);
+            int to = (i==cuts.size())?html.length():cuts.get(i).pos;
+            Chunk c = new Chunk( h, html.substring(from,to), 
+                (prev==null)?0:prev.divs, (prev==null)?"":guess(prev.nls),
+                false, i==cuts.size() );
+            futures.add( Pools.CPU.submit(c) );
+            from = to;
+        }
+        // global indices and offsets of the ranges of the open divs
+        ArrayList<int[]> openDivs = new ArrayList<int[]>();
+        Chunk prev = null;
+        for ( Future<Chunk> f : futures )
+        {
+            Chunk c = Pools.join( f );
+            if ( prev != null && !fits(c,prev) )
+            {
+                if ( !canInherit(prev) )
+                {
+                    // something other than sections is open across a cut
+                    h.reset( h.stil.getStyle() );
+                    new HTMLConverter( h ).convert( new StringReader(html) );
+                    return;
+                }
+                c = new Chunk( h, c.text, prev.conv.open.size()-1, 
+                    tail(h.sb), h.prevWasMilestone, c.last ).call();
+            }
+            stitch( h, c, openDivs );
+            prev = c;
+        }
+    }
+    /**
+     * Choose where to cut the document
+     * @param nChunks the number of chunks wanted
+     * @return the cuts in order, possibly fewer than nChunks-1
+     */
+    private ArrayList<Cut> chooseCuts( int nChunks )
+    {
+        ArrayList<Cut> all = scan();
+        ArrayList<Cut> cuts = new ArrayList<Cut>();
+        int j = 0;
+        for ( int i=1;i<nChunks;i++ )
+        {
+            int target = (int)((long)html.length()*i/nChunks);
+            while ( j < all.size() && all.get(j).pos < target )
+                j++;
+            if ( j == all.size() )
+                break;
+            cuts.add( all.get(j++) );
+        }
+        return cuts;
+    }
+    /**
+     * Find the places where a paragraph, heading or section starts 
+     * straight after another has ended. The tags are read with the same 
+     * rules as HTMLTokenizer, so a cut never falls inside a tag, comment 
+     * or script.
+     * @return a list of possible cuts
+     */
+    private ArrayList<Cut> scan()
+    {
+        ArrayList<Cut> cuts = new ArrayList<Cut>();
+        int len = html.length();
+        int divs = 0;
+        // newlines the last tag closed will have left, or -1
+        int nls = -1;
+        String paraName = "p";
+        int i = 0;
+        while ( (i=html.indexOf('<',i)) != -1 && i+1 < len )
+        {
+            int pos = i;
+            char d = html.charAt(i+1);
+            if ( isLetter(d) )
+            {
+                i = readName( pos+1 );
+                String name = html.substring(pos+1,i).toLowerCase();
+                String cls = null;
+                boolean selfClosing = false;
+                while ( i < len )
+                {
+                    char c = html.charAt(i);
+                    if ( c == '>' )
+                    {
+                        i++;
+                        break;
+                    }
+                    else if ( c == '/' )
+                    {
+                        i++;
+                        if ( i < len && html.charAt(i) == '>' )
+                        {
+                            i++;
+                            selfClosing = true;
+                            break;
+                        }
+                    }
+                    else if ( isSpace(c) )
+                        i++;
+                    else
+                    {
+                        int keyStart = i++;
+                        while ( i < len && !isSpace(c=html.charAt(i)) 
+                            && c != '/' && c != '>' && c != '=' )
+                            i++;
+                        String key = html.substring(keyStart,i);
+                        while ( i < len && isSpace(html.charAt(i)) )
+                            i++;
+                        if ( i < len && html.charAt(i) == '=' )
+                        {
+                            i++;
+                            while ( i < len && isSpace(html.charAt(i)) )
+                                i++;
+                            int valStart = i;
+                            String value;
+                            char quote = (i<len)?html.charAt(i):0;
+                            if ( quote == '"' || quote == '\'' )
+                            {
+                                int end = html.indexOf( quote, i+1 );
+                                end = (end==-1)?len:end;
+                                value = html.substring( i+1, end );
+                                i = Math.min( len, end+1 );
+                            }
+                            else
+                            {
+                                while ( i < len && !isSpace(c=html.charAt(i)) 
+                                    && c != '>' )
+                                    i++;
+                                value = html.substring( valStart, i );
+                            }
+                            if ( key.equalsIgnoreCase("class") )
+                                cls = Parser.unescapeEntities( value, true );
+                        }
+                        else if ( key.equalsIgnoreCase("class") )
+                            cls = "";
+                    }
+                }
+                boolean heading = HTMLConverter.isHeading(name);
+                if ( nls != -1 && divs <= 1 && (heading||name.equals("p")
+                    ||name.equals("div")) )
+                    cuts.add( new Cut(pos,divs,nls) );
+                nls = -1;
+                if ( name.equals("div") )
+                    divs++;
+                else if ( heading || name.equals("p") )
+                    paraName = (cls==null||cls.length()==0)?name:cls;
+                if ( !selfClosing && isRawText(name) )
+                    i = skipRawText( i, name );
+            }
+            else if ( d == '/' )
+            {
+                i = pos+2;
+                if ( i < len && isLetter(html.charAt(i)) )
+                {
+                    int end = readName( i );
+                    String name = html.substring(i,end).toLowerCase();
+                    if ( name.equals("div") )
+                    {
+                        divs = Math.max( 0, divs-1 );
+                        nls = 3;
+                    }
+                    else if ( name.equals("p")||HTMLConverter.isHeading(name) )
+                        nls = h.classifier.isLineFormat(paraName)?1:2;
+                    else
+                        nls = -1;
+                }
+                i = skipTo( i, '>' );
+            }
+            else if ( d == '!' || d == '?' )
+            {
+                i = pos+2;
+                if ( d == '!' && html.startsWith("--",i) )
+                {
+                    // a comment ends at the first ">" after two dashes
+                    int dashes = 0;
+                    i += 2;
+                    while ( i < len )
+                    {
+                        char c = html.charAt(i++);
+                        if ( c == '>' && dashes >= 2 )
+                            break;
+                        dashes = (c=='-')?dashes+1:0;
+                    }
+                }
+                else
+                {
+                    if ( d == '!' && i < len && html.charAt(i) == '-' )
+                        i++;
+                    i = skipTo( i, '>' );
+                }
+            }
+            else
+                i++;
+        }
+        return cuts;
+    }
+    private static boolean isSpace( char c )
+    {
+        return c==' '||c=='\t'||c=='\n'||c=='\r'||c=='\f';
+    }
+    private static boolean isLetter( char c )
+    {
+        return (c>='a'&&c<='z')||(c>='A'&&c<='Z');
+    }
+    private static boolean isRawText( String name )
+    {
+        return name.equals("script")||name.equals("style")
+            ||name.equals("textarea")||name.equals("title")
+            ||name.equals("xmp")||name.equals("iframe")
+            ||name.equals("noembed")||name.equals("noframes");
+    }
+    /**
+     * Find the end of a tag name
+     * @param i the offset of its first char
+     * @return the offset just after it
+     */
+    private int readName( int i )
+    {
+        char c;
+        while ( i < html.length() && !isSpace(c=html.charAt(i)) 
+            && c != '/' && c != '>' )
+            i++;
+        return i;
+    }
+    /**
+     * Skip up to and including a char
+     * @param i the offset to start from
+     * @param end the char to skip to
+     * @return the offset just after it or the end of the document
+     */
+    private int skipTo( int i, char end )
+    {
+        int j = html.indexOf( end, i );
+        return (j==-1)?html.length():j+1;
+    }
+    /**
+     * Skip the content and end tag of a script, style etc
+     * @param i the offset just after the start tag
+     * @param name the element's name
+     * @return the offset just after its end tag
+     */
+    private int skipRawText( int i, String name )
+    {
+        String end = "</"+name;
+        int len = html.length();
+        for ( ;i+end.length()<=len;i++ )
+        {
+            if ( html.regionMatches(true,i,end,0,end.length()) )
+            {
+                int j = i+end.length();
+                char d = (j<len)?html.charAt(j):0;
+                if ( j == len || d=='>' || d=='/' || isSpace(d) )
+                    return skipTo( j, '>' );
+            }
+        }
+        return len;
+    }
+    /**
+     * Convert a document posted as blocks: top-level elements, or the 
+     * start and end tags of a section and the elements inside it. A 
+     * block's old conversion is used again if it follows the same number 
+     * of open sections and the text before it ends the same way.
+     * @param h the handler to receive the text and ranges
+     * @param blocks the HTML of each block
+     * @param old the earlier conversion of each block or null
+     * @return the conversion of each block, or null if some block left 
+     * more than sections open, so that they must be converted together
+     * @throws Exception 
+     */
+    static ArrayList<Chunk> convertBlocks( MMLPostHTMLHandler h, 
+        ArrayList<String> blocks, ArrayList<Chunk> old ) throws Exception
+    {
+        ArrayList<Chunk> parts = new ArrayList<Chunk>();
+        ArrayList<int[]> openDivs = new ArrayList<int[]>();
+        int divs = 0;
+        for ( int i=0;i<blocks.size();i++ )
+        {
+            String prefix = tail( h.sb );
+            Chunk c = old.get( i );
+            if ( c == null || c.divs != divs 
+                || c.wasMilestone != h.prevWasMilestone 
+                || !sameTail(c.prefix,prefix) )
+                c = new Chunk( h, blocks.get(i), divs, prefix, 
+                    h.prevWasMilestone, false ).call();
+            if ( !canInherit(c) )
+                return null;
+            stitch( h, c, openDivs );
+            parts.add( c );
+            divs = c.conv.open.size()-1;
+        }
+        if ( divs > 0 )
+        {
+            // close the sections left open at the end
+            Chunk end = new Chunk( h, "", divs, tail(h.sb), 
+                h.prevWasMilestone, true ).call();
+            stitch( h, end, openDivs );
+        }
+        return parts;
+    }
+    /**
+     * Has a prefix only a newline or a char other than a newline?
+     * @param prefix the end of the text before a chunk
+     * @return true if it starts with a char that is not a newline
+     */
+    private static boolean hasLead( String prefix )
+    {
+        if ( prefix.length() == 0 )
+            return false;
+        char c = prefix.charAt(0);
+        return c != '\n' && c != '\r';
+    }
+    /**
+     * Would ensure() treat two ends of the text the same way?
+     * @param a the end of one text
+     * @param b the end of another
+     * @return true if they have the same newlines after any other char
+     */
+    private static boolean sameTail( String a, String b )
+    {
+        if ( a.length() != b.length() || hasLead(a) != hasLead(b) )
+            return false;
+        int from = hasLead(a)?1:0;
+        return a.substring(from).equals(b.substring(from));
+    }
+    /**
+     * Guess the end of the text before a cut
+     * @param nls the number of newlines probably there
+     * @return a placeholder char followed by that many newlines
+     */
+    private static String guess( int nls )
+    {
+        StringBuilder sb = new StringBuilder("x");
+        for ( int i=0;i<nls;i++ )
+            sb.append('\n');
+        return sb.toString();
+    }
+    /**
+     * Get the part of the text that ensure() would look at
+     * @param sb the text so far
+     * @return its trailing newlines and the char before them
+     */
+    private static String tail( StringBuilder sb )
+    {
+        int i = sb.length();
+        while ( i > 0 && (sb.charAt(i-1)=='\n'||sb.charAt(i-1)=='\r') )
+            i--;
+        return sb.substring( Math.max(0,i-1) );
+    }
+    /**
+     * Can the elements open at the end of a chunk be handed on?
+     * @param prev the chunk
+     * @return true if only sections are open and no formatting is active
+     */
+    private static boolean canInherit( Chunk prev )
+    {
+        ArrayList<HTMLConverter.Element> open = prev.conv.open;
+        if ( !prev.conv.active.isEmpty() || open.size() > 2 )
+            return false;
+        return open.size()==1 || open.get(1).name.equals("div");
+    }
+    /**
+     * Did a chunk guess right about the state the one before left?
+     * @param c the chunk
+     * @param prev the chunk before it, already stitched
+     * @return true if it can be stitched as it is
+     */
+    private boolean fits( Chunk c, Chunk prev )
+    {
+        if ( !canInherit(prev) || prev.conv.open.size()-1 != c.divs
+            || h.prevWasMilestone != c.wasMilestone )
+            return false;
+        return sameTail( tail(h.sb), c.prefix );
+    }
+    /**
+     * Add a converted chunk to the handler's text and ranges. The chunk 
+     * is left as it was, so that it can be stitched in again later.
+     * @param h the handler to receive the chunk
+     * @param c the chunk
+     * @param openDivs global index and offset of each open div
+     */
+    private static void stitch( MMLPostHTMLHandler h, Chunk c, 
+        ArrayList<int[]> openDivs )
+    {
+        int start = h.sb.length()-c.prefix.length();
+        // the first char of the prefix only stops ensure() looking back
+        int lead = hasLead(c.prefix)?1:0;
+        h.sb.setLength( start+lead );
+        h.sb.append( c.part.sb, lead, c.part.sb.length() );
+        int base = h.stil.append( c.part.stil, start );
+        for ( int index : c.part.hyphens )
+            h.hyphens.add( base+index );
+        int pageBase = h.pages.append( c.part.pages, start );
+        for ( int index : c.part.milestoneRanges )
+            h.milestoneRanges.add( pageBase+index );
+        for ( int i=0;i<c.conv.inherited.size();i++ )
+        {
+            HTMLConverter.Element e = c.conv.inherited.get( i );
+            if ( e.end != -1 )
+            {
+                int[] div = openDivs.get( i );
+                h.stil.updateLen( div[0], start+e.end-div[1] );
+            }
+        }
+        ArrayList<int[]> stillOpen = new ArrayList<int[]>();
+        for ( int i=1;i<c.conv.open.size();i++ )
+        {
+            HTMLConverter.Element e = c.conv.open.get( i );
+            if ( e.inherited )
+                stillOpen.add( openDivs.get(i-1) );
+            else
+                stillOpen.add( new int[]{base+e.index,start+e.offset} );
+        }
+        openDivs.clear();
+        openDivs.addAll( stillOpen );
+        h.prevWasMilestone = c.part.prevWasMilestone;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.scratch;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Edit scripts that rebuild one layer from another. Layers of the same 
+ * version are mostly the same text, so a layer can be kept as the runs 
+ * it copies from the base layer plus the few bytes it inserts. A script 
+ * is the length of the result followed by operations, each a varint 
+ * header: (len&lt;&lt;1)|1 then the offset to copy len bytes from the base, 
+ * or len&lt;&lt;1 then len bytes to insert.
+ * @author desmond
+ */
+public class LayerDelta 
+{
+    /** length of the blocks of the base that are looked up */
+    static final int BLOCK = 16;
+    /** multiplier of the rolling hash */
+    static final int PRIME = 31;
+    /**
+     * Hash a block
+     * @param data the bytes
+     * @param from the start of the block
+     * @return its hash
+     */
+    private static int hash( byte[] data, int from )
+    {
+        int h = 0;
+        for ( int i=from;i<from+BLOCK;i++ )
+            h = h*PRIME+(data[i]&0xFF);
+        return h;
+    }
+    /**
+     * Write an unsigned varint
+     * @param out the script
+     * @param value the value
+     */
+    private static void writeVarint( ByteArrayOutputStream out, int value )
+    {
+        while ( (value & ~0x7F) != 0 )
+        {
+            out.write( (value&0x7F)|0x80 );
+            value >>>= 7;
+        }
+        out.write( value );
+    }
+    /**
+     * Add bytes to insert to a script
+     * @param out the script
+     * @param data where they come from
+     * @param from the first of them
+     * @param to the end of them
+     */
+    private static void insert( ByteArrayOutputStream out, byte[] data, 
+        int from, int to )
+    {
+        if ( to > from )
+        {
+            writeVarint( out, (to-from)<<1 );
+            out.write( data, from, to-from );
+        }
+    }
+    /**
+     * Work out the script that turns base into target
+     * @param base the base layer
+     * @param target the layer to be rebuilt
+     * @return the script
+     */
+    public static byte[] encode( byte[] base, byte[] target )
+    {
+        // where each block of the base starts
+        HashMap<Integer,Integer> blocks = new HashMap<Integer,Integer>();
+        for ( int p=0;p+BLOCK<=base.length;p+=BLOCK )
+        {
+            int h = hash( base, p );
+            if ( !blocks.containsKey(h) )
+                blocks.put( h, p );
+        }
+        // PRIME to the power BLOCK-1, to roll the oldest byte out
+        int top = 1;
+        for ( int i=1;i<BLOCK;i++ )
+            top *= PRIME;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint( out, target.length );
+        int pending = 0;
+        int i = 0;
+        int h = (target.length>=BLOCK)?hash(target,0):0;
+        while ( i+BLOCK <= target.length )
+        {
+            Integer p = blocks.get( h );
+            if ( p != null && matches(base,p,target,i) )
+            {
+                int from = i;
+                int at = p;
+                // take back what matches before the block
+                while ( from > pending && at > 0 
+                    && target[from-1] == base[at-1] )
+                {
+                    from--;
+                    at--;
+                }
+                int end = i+BLOCK;
+                int bEnd = p+BLOCK;
+                while ( end < target.length && bEnd < base.length 
+                    && target[end] == base[bEnd] )
+                {
+                    end++;
+                    bEnd++;
+                }
+                insert( out, target, pending, from );
+                writeVarint( out, ((end-from)<<1)|1 );
+                writeVarint( out, at );
+                i = pending = end;
+                if ( i+BLOCK <= target.length )
+                    h = hash( target, i );
+            }
+            else
+            {
+                if ( i+BLOCK < target.length )
+                    h = (h-(target[i]&0xFF)*top)*PRIME
+                        +(target[i+BLOCK]&0xFF);
+                i++;
+            }
+        }
+        insert( out, target, pending, target.length );
+        return out.toByteArray();
+    }
+    /**
+     * Does a block of the target really match the base?
+     * @param base the base layer
+     * @param p where the block is in the base
+     * @param target the layer being encoded
+     * @param i where the block is in the target
+     * @return true if the bytes are the same
+     */
+    private static boolean matches( byte[] base, int p, byte[] target, int i )
+    {
+        for ( int k=0;k<BLOCK;k++ )
+            if ( base[p+k] != target[i+k] )
+                return false;
+        return true;
+    }
+    /**
+     * Rebuild a layer
+     * @param base the base layer
+     * @param script the script made by encode
+     * @return the layer
+     */
+    public static byte[] apply( byte[] base, byte[] script )
+    {
+        int[] pos = new int[1];
+        byte[] result = new byte[readVarint(script,pos)];
+        int len = 0;
+        while ( pos[0] < script.length )
+        {
+            int op = readVarint( script, pos );
+            int n = op>>>1;
+            if ( (op&1) != 0 )
+                System.arraycopy( base, readVarint(script,pos), result, len, n );
+            else
+            {
+                System.arraycopy( script, pos[0], result, len, n );
+                pos[0] += n;
+            }
+            len += n;
+        }
+        return (len==result.length)?result:Arrays.copyOf(result,len);
+    }
+    /**
+     * Read an unsigned varint
+     * @param data the script
+     * @param pos the position to read from, moved on past it
+     * @return the value
+     */
+    private static int readVarint( byte[] data, int[] pos )
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = data[pos[0]++];
+            value |= (b&0x7F)<<shift;
+            shift += 7;
+        }
+        while ( (b&0x80) != 0 );
+        return value;
+    }
+}
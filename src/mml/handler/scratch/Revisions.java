@@ -0,0 +1,187 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.scratch;
+
+import calliope.core.exception.DbException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The revision numbers of scratch records. Each write of a record bumps 
+ * its revision, and while a record is locked nobody else may write it, 
+ * so a save can check that nothing has replaced the revision it started 
+ * from. Only records being saved are locked: saves of other documents go 
+ * ahead at the same time.
+ * @author desmond
+ */
+public class Revisions 
+{
+    /** the most revisions kept in memory */
+    static final int MAX_RECORDS = 1024;
+    /** records being written or checked */
+    static HashMap<String,Slot> slots = new HashMap<String,Slot>();
+    /** revisions of recently used records */
+    static LinkedHashMap<String,Long> revs = 
+        new LinkedHashMap<String,Long>(16,0.75f,true) {
+            protected boolean removeEldestEntry( 
+                Map.Entry<String,Long> eldest )
+            {
+                return size() > MAX_RECORDS;
+            }
+        };
+    /**
+     * A locked record
+     */
+    public static class Slot
+    {
+        String key;
+        String dbase;
+        String docid;
+        String version;
+        ReentrantLock lock;
+        /** number of threads holding or waiting for the slot */
+        int users;
+        Slot( String key, String dbase, String docid, String version )
+        {
+            this.key = key;
+            this.dbase = dbase;
+            this.docid = docid;
+            this.version = version;
+            this.lock = new ReentrantLock();
+        }
+    }
+    /**
+     * Make the key of a record
+     * @param dbase the database it belongs to
+     * @param docid its docid
+     * @param version its version
+     * @return a key unique to the record
+     */
+    static String key( String dbase, String docid, String version )
+    {
+        return dbase+"#"+docid+"#"+version;
+    }
+    /**
+     * Lock a scratch record, waiting for anyone else using it
+     * @param dbase the database it belongs to
+     * @param docid its docid
+     * @param version its version
+     * @return the slot, to be passed to unlock() when done
+     */
+    public static Slot lock( String dbase, String docid, String version )
+    {
+        String key = key( dbase, docid, version );
+        Slot slot;
+        synchronized ( Revisions.class )
+        {
+            slot = slots.get( key );
+            if ( slot == null )
+            {
+                slot = new Slot( key, dbase, docid, version );
+                slots.put( key, slot );
+            }
+            slot.users++;
+        }
+        slot.lock.lock();
+        return slot;
+    }
+    /**
+     * Lock a scratch record keyed by its docid alone
+     * @param docid its docid
+     * @return the slot, to be passed to unlock() when done
+     */
+    public static Slot lock( String docid )
+    {
+        return lock( null, docid, null );
+    }
+    /**
+     * Unlock a record
+     * @param slot the slot returned by lock()
+     */
+    public static void unlock( Slot slot )
+    {
+        slot.lock.unlock();
+        synchronized ( Revisions.class )
+        {
+            if ( --slot.users == 0 )
+                slots.remove( slot.key );
+        }
+    }
+    /**
+     * Get the revision of a locked record
+     * @param slot its slot
+     * @return its revision, 0 if it has none, or -1 if it doesn't exist
+     * @throws DbException 
+     */
+    public static long current( Slot slot ) throws DbException
+    {
+        // saves not yet written are only in memory
+        Long live = ScratchTier.getRev( slot.key );
+        if ( live != null )
+            return live;
+        synchronized ( Revisions.class )
+        {
+            Long rev = revs.get( slot.key );
+            if ( rev != null )
+                return rev;
+        }
+        long rev = (slot.dbase==null)?ScratchStore.getRev(slot.docid)
+            :ScratchStore.getRev(slot.dbase,slot.docid,slot.version);
+        set( slot, rev );
+        return rev;
+    }
+    /**
+     * Get the revision of a record keyed by its docid alone
+     * @param docid its docid
+     * @return its revision, 0 if it has none, or -1 if it doesn't exist
+     * @throws DbException 
+     */
+    public static long get( String docid ) throws DbException
+    {
+        Slot slot = lock( docid );
+        try
+        {
+            return current( slot );
+        }
+        finally
+        {
+            unlock( slot );
+        }
+    }
+    /**
+     * Record the revision of a locked record just written or removed
+     * @param slot its slot
+     * @param rev its new revision or -1 if it is gone
+     */
+    public static synchronized void set( Slot slot, long rev )
+    {
+        revs.put( slot.key, rev );
+        if ( rev == -1 )
+            ScratchTier.drop( slot.key );
+    }
+    /**
+     * Forget what we know of a locked record, e.g. if a write failed
+     * @param slot its slot
+     */
+    public static synchronized void forget( Slot slot )
+    {
+        revs.remove( slot.key );
+    }
+}
@@ -19,15 +19,16 @@ package mml.handler.scratch;
 
 import calliope.core.constants.JSONKeys;
 import calliope.core.database.Connector;
-import calliope.core.database.Connection;
 import calliope.core.constants.Database;
 import calliope.core.exception.DbException;
 import mml.exception.MMLException;
-import mml.Autosave;
+import mml.exception.MMLConflictException;
 import calliope.core.handler.EcdosisMVD;
 import mml.handler.get.Layers;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Arrays;
@@ -42,35 +43,104 @@ public class Scratch
     /**
      * Save a single scrath version
      * @param sv the scratch version object
-     * @param docid its docid
      * @throws MMLException 
      */
     public static void save( ScratchVersion sv ) throws MMLException
     {
+        saveAll( -1, sv );
+    }
+    /**
+     * Save several scratch versions at once, whatever is stored
+     * @param svs the scratch versions
+     * @return the revision they were saved as
+     * @throws MMLException 
+     */
+    public static long saveAll( ScratchVersion... svs ) throws MMLException
+    {
+        return saveAll( -1, svs );
+    }
+    /**
+     * Save several scratch versions at once. They are kept in memory 
+     * and journalled, and written to the SCRATCH collection later, each 
+     * write replacing any existing record. The records are 
+     * locked while they are checked and written, so a save based on a 
+     * revision that another save has since replaced fails instead of 
+     * silently overwriting it. The locks only cover this server, so the 
+     * later write is also made only if the record still has the revision 
+     * it replaces.
+     * @param base the revision the versions were based on or -1 to 
+     * overwrite whatever is there
+     * @param svs the scratch versions
+     * @return the revision they were saved as
+     * @throws MMLConflictException if a record was written after base
+     * @throws MMLException 
+     */
+    public static long saveAll( long base, ScratchVersion... svs ) 
+        throws MMLException
+    {
+        // don't run ahead of the writes
+        ScratchTier.await();
+        // lock in a fixed order so two saves can't wait for each other
+        ScratchVersion[] sorted = Arrays.copyOf( svs, svs.length );
+        Arrays.sort( sorted, new Comparator<ScratchVersion>() {
+            public int compare( ScratchVersion a, ScratchVersion b )
+            {
+                return Revisions.key(a.dbase,a.getDocid(),a.version)
+                    .compareTo(Revisions.key(b.dbase,b.getDocid(),b.version));
+            }
+        });
+        ArrayList<Revisions.Slot> slots = new ArrayList<Revisions.Slot>();
         try
         {
-            System.out.println("Saving "+sv.docid+","+sv.version);
-            Autosave.inProgress = true;
-            // 1. check if scratch version already exists
-            Connection conn = Connector.getConnection();
-            String docid = sv.getDocid();
-            String res = conn.getFromDb( Database.SCRATCH, sv.dbase, docid, sv.version );
-            if ( res != null )
+            long latest = 0;
+            for ( ScratchVersion sv : sorted )
             {
-                conn.removeFromDb( Database.SCRATCH, sv.dbase, docid, sv.version );
-                System.out.println("Removed "+sv.docid+","+sv.version+" from scratch");
+                Revisions.Slot slot = Revisions.lock( sv.dbase, 
+                    sv.getDocid(), sv.version );
+                slots.add( slot );
+                long cur = Revisions.current( slot );
+                if ( base >= 0 && cur > base )
+                    throw new MMLConflictException( sv.docid+","+sv.version
+                        +" is at revision "+cur+" not "+base, cur );
+                latest = Math.max( latest, cur );
             }
-            // 2. write the record and record its time
-            String json = sv.toJSON();
-            conn.putToDb(Database.SCRATCH, sv.dbase, docid, sv.version, json);
-            System.out.println("Saved "+sv.docid+","+sv.version);
-            Autosave.inProgress = false;
+            // records left unchanged keep their old revisions. The new 
+            // one is never behind the revision the client was sent.
+            long rev = Math.max( latest, base )+1;
+            ArrayList<ScratchVersion> changed = new ArrayList<ScratchVersion>();
+            ArrayList<Revisions.Slot> changedSlots = 
+                new ArrayList<Revisions.Slot>();
+            for ( int i=0;i<sorted.length;i++ )
+            {
+                if ( !ScratchTier.isSaved(sorted[i],sorted[i].getHash()) )
+                {
+                    sorted[i].rev = rev;
+                    changed.add( sorted[i] );
+                    changedSlots.add( slots.get(i) );
+                }
+            }
+            if ( changed.isEmpty() )
+                return latest;
+            // done once in memory and journalled: written later
+            ScratchTier.put( changed.toArray(new ScratchVersion[changed.size()]) );
+            for ( Revisions.Slot slot : changedSlots )
+                Revisions.set( slot, rev );
+            return rev;
         }
         catch ( DbException e )
         {
-            Autosave.inProgress = false;
             System.out.println("Error "+e.getMessage());
-            throw new MMLException(e);
+            throw new MMLException( e );
+        }
+        catch ( MMLException e )
+        {
+            System.out.println("Error "+e.getMessage());
+            throw e;
+        }
+        finally
+        {
+            for ( Revisions.Slot slot : slots )
+                Revisions.unlock( slot );
         }
     }
     protected static EcdosisMVD doGetMVD( String db, String docid ) 
@@ -102,15 +172,15 @@ public class Scratch
     private static ScratchVersion getScratchVersion( String docid, 
         String version, String dbase ) throws DbException
     {
-        Connection conn = Connector.getConnection();
+        ScratchVersion sv = ScratchTier.get( dbase, docid, version );
+        if ( sv != null )
+            return sv;
         // base + docid + version should be unique
-        String bson = conn.getFromDb(Database.SCRATCH, dbase, docid, version);
+        sv = ScratchStore.get( dbase, docid, version );
         System.out.println("Fetching version "+version+" for "+docid);
-        if ( bson != null )
-        {
-            return ScratchVersion.fromJSON(bson);
-        }
-        return null;
+        if ( sv != null )
+            ScratchTier.cache( sv, version );
+        return sv;
     }
     /**
      * Get a version that may or may not be in scratch. If not put it there.
@@ -130,19 +200,19 @@ public class Scratch
                 sv = getScratchVersion(docid,version,dbase);
             if ( sv == null )
             {
-                EcdosisMVD mvd = doGetMVD( dbase, docid );
+                final EcdosisMVD mvd = doGetMVD( dbase, docid );
                 if ( mvd != null )
                 {
                     if ( version == null )
                         version = mvd.getVersion1();
                     String base = Layers.stripLayer(version);
-                    HashMap<String,char[]> layers = new HashMap<String,char[]>();
+                    HashMap<String,Integer> layers = new HashMap<String,Integer>();
                     int numVersions = mvd.numVersions();
                     for ( int i=1;i<=numVersions;i++ )
                     {
                         String vName = mvd.getVersionId((short)i);
                         if ( vName.lastIndexOf(base) == 0 )
-                            layers.put( vName, mvd.getVersion(i) );
+                            layers.put( vName, i );
                     }
                     if ( !layers.isEmpty() )
                     {
@@ -158,13 +228,18 @@ public class Scratch
                         for ( int i=0;i<arr.length;i++ )
                         {
                             String updatedName = Layers.upgradeLayerName(all,arr[i]);
-                            sv.addLayer( layers.get(arr[i]), 
-                                ScratchVersion.layerNumber(updatedName) );
+                            final int vId = layers.get(arr[i]);
+                            // only decode the layers someone actually reads
+                            sv.addLayer( new ScratchVersion.LayerSource() {
+                                public char[] load()
+                                {
+                                    return mvd.getVersion( vId );
+                                }
+                            }, ScratchVersion.layerNumber(updatedName) );
                         }
-                        // save it for next time
-                        Connection conn = Connector.getConnection();
-                        conn.putToDb( Database.SCRATCH, dbase, 
-                            docid, version, sv.toJSON() );
+                        // not kept: writing it to scratch would decode 
+                        // every layer, and holding it would pin the MVD 
+                        // and serve stale layers after a re-import
                         return sv;
                     }
                 }
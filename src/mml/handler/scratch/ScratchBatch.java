@@ -0,0 +1,219 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.scratch;
+
+import calliope.core.constants.Database;
+import calliope.core.database.Connector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import mml.Pools;
+import mml.exception.MMLException;
+
+/**
+ * A set of scratch records to be written together. putToDb is already an 
+ * upsert, so each record takes one round trip, and the writes are sent 
+ * at once so that the whole batch takes about as long as one of them.
+ * Records identical to the last ones written are not sent again.
+ * @author desmond
+ */
+public class ScratchBatch 
+{
+    /** the most documents whose hashes are kept */
+    static final int MAX_DOCS = 256;
+    /** hashes of the records last written for each collection and docid, 
+     * keyed by dbase and version ("" for records keyed by docid alone) */
+    static LinkedHashMap<String,HashMap<String,String>> written = 
+        new LinkedHashMap<String,HashMap<String,String>>(16,0.75f,true) {
+            protected boolean removeEldestEntry( 
+                Map.Entry<String,HashMap<String,String>> eldest )
+            {
+                return size() > MAX_DOCS;
+            }
+        };
+    ArrayList<Callable<String>> writes;
+    /** number of records left out because they were unchanged */
+    int unchanged;
+    public ScratchBatch()
+    {
+        writes = new ArrayList<Callable<String>>();
+    }
+    /**
+     * Was this exactly what we last wrote?
+     * @param coll the collection
+     * @param docid the record's docid
+     * @param key its dbase and version, or "" if keyed by docid alone
+     * @param hash the hash of its content
+     * @return true if the record already holds it
+     */
+    static synchronized boolean isWritten( String coll, String docid, 
+        String key, String hash )
+    {
+        HashMap<String,String> map = written.get( coll+"#"+docid );
+        return map != null && hash.equals(map.get(key));
+    }
+    /**
+     * Note the content of a record just written
+     * @param coll the collection
+     * @param docid the record's docid
+     * @param key its dbase and version, or "" if keyed by docid alone
+     * @param hash the hash of its content
+     */
+    static synchronized void setWritten( String coll, String docid, 
+        String key, String hash )
+    {
+        HashMap<String,String> map = written.get( coll+"#"+docid );
+        // a record keyed by docid alone may replace any of them
+        if ( map == null || key.length()==0 )
+        {
+            map = new HashMap<String,String>();
+            written.put( coll+"#"+docid, map );
+        }
+        map.put( key, hash );
+    }
+    /**
+     * Add a record keyed by its docid
+     * @param coll the collection
+     * @param docid its docid
+     * @param json the record
+     */
+    public void put( final String coll, final String docid, final String json )
+    {
+        final String hash = ScratchVersion.hash( json );
+        if ( isWritten(coll,docid,"",hash) )
+            unchanged++;
+        else
+        {
+            writes.add( new Callable<String>() {
+                public String call() throws Exception
+                {
+                    String res = Connector.getConnection().putToDb( coll, 
+                        docid, json );
+                    setWritten( coll, docid, "", hash );
+                    return res;
+                }
+            });
+        }
+    }
+    /**
+     * Add a record keyed by its docid, to be written only if it is still 
+     * at the revision expected
+     * @param docid its docid
+     * @param json the record without its revision
+     * @param rev the revision to give it
+     * @param expected the revision it should have, as for ScratchStore.put
+     * @return true if it will be written, false if it was unchanged
+     */
+    public boolean put( final String docid, final String json, 
+        final long rev, final long expected )
+    {
+        final String hash = ScratchVersion.hash( json );
+        if ( isWritten(Database.SCRATCH,docid,"",hash) )
+        {
+            unchanged++;
+            return false;
+        }
+        else
+        {
+            writes.add( new Callable<String>() {
+                public String call() throws Exception
+                {
+                    ScratchStore.put( docid, json, rev, expected );
+                    setWritten( Database.SCRATCH, docid, "", hash );
+                    return "Saved "+docid+" at revision "+rev;
+                }
+            });
+            return true;
+        }
+    }
+    /**
+     * Number of records to be written so far
+     * @return the number added and not left out as unchanged
+     */
+    public int size()
+    {
+        return writes.size();
+    }
+    /**
+     * Add a scratch version, keyed by its database, docid and version
+     * @param sv the version
+     * @return true if it will be written, false if it was unchanged
+     */
+    public boolean put( final ScratchVersion sv )
+    {
+        final String hash = sv.getHash();
+        if ( isWritten(Database.SCRATCH,sv.getDocid(),sv.dbase+"#"+sv.version,
+            hash) )
+        {
+            System.out.println("Unchanged "+sv.docid+","+sv.version);
+            unchanged++;
+            return false;
+        }
+        else
+        {
+            writes.add( new Callable<String>() {
+                public String call() throws Exception
+                {
+                    ScratchStore.put( sv, sv.version );
+                    setWritten( Database.SCRATCH, sv.getDocid(), 
+                        sv.dbase+"#"+sv.version, hash );
+                    System.out.println("Saved "+sv.docid+","+sv.version);
+                    return "Saved "+sv.docid+","+sv.version;
+                }
+            });
+            return true;
+        }
+    }
+    /**
+     * Write everything added so far
+     * @return the log of the writes
+     * @throws MMLException if any write failed
+     */
+    public String commit() throws MMLException
+    {
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for ( Callable<String> write : writes )
+            futures.add( Pools.IO.submit(write) );
+        writes.clear();
+        StringBuilder log = new StringBuilder();
+        if ( unchanged > 0 )
+            log.append( unchanged+" unchanged record(s) not written\n" );
+        unchanged = 0;
+        MMLException failure = null;
+        // wait for all of them even if one fails
+        for ( Future<String> f : futures )
+        {
+            try
+            {
+                log.append( Pools.join(f) );
+                log.append( "\n" );
+            }
+            catch ( MMLException e )
+            {
+                if ( failure == null )
+                    failure = e;
+            }
+        }
+        if ( failure != null )
+            throw failure;
+        return log.toString();
+    }
+}
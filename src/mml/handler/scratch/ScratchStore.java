@@ -0,0 +1,535 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.scratch;
+
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connection;
+import calliope.core.database.Connector;
+import calliope.core.database.MongoConnection;
+import calliope.core.exception.DbException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteResult;
+import com.mongodb.util.JSON;
+import mml.MMLWebApp;
+import mml.exception.MMLConflictException;
+import org.bson.types.ObjectId;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Read and write scratch versions. With Mongo they are stored as native 
+ * BSON documents, the layer bodies as binary UTF-8, so nothing has to be 
+ * escaped or parsed as JSON, and the header fields can be read without 
+ * the bodies. Other repositories get the versions as JSON.
+ * @author desmond
+ */
+public class ScratchStore 
+{
+    /** the expected revision that lets put write over anything */
+    public static final long ANY = Long.MIN_VALUE;
+    /** the scratch collection or null if not using Mongo */
+    static DBCollection scratch;
+    /** true once we know which kind of repository it is */
+    static boolean checked;
+    /** the port MongoConnection connects to, whatever dbPort says */
+    static final int MONGO_PORT = 27017;
+    /**
+     * Open the database the Connector's MongoConnection uses: the same 
+     * host, port and database name, and like it no credentials.
+     * @param conn the Mongo connection from the Connector
+     * @return a handle on its database
+     * @throws Exception if the client can't be made
+     */
+    static DB database( Connection conn ) throws Exception
+    {
+        MongoClient client = new MongoClient( conn.getHost(), MONGO_PORT );
+        return client.getDB( MMLWebApp.DB_NAME );
+    }
+    /**
+     * Get the scratch collection if the repository is Mongo
+     * @return the collection or null
+     * @throws DbException 
+     */
+    static synchronized DBCollection collection() throws DbException
+    {
+        if ( !checked )
+        {
+            Connection conn = Connector.getConnection();
+            if ( conn == null )
+                throw new DbException("connection to database was null");
+            try
+            {
+                if ( conn instanceof MongoConnection )
+                {
+                    scratch = database(conn)
+                        .getCollection(Database.SCRATCH);
+                }
+                checked = true;
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( e );
+            }
+        }
+        return scratch;
+    }
+    /**
+     * Make the query that picks out one scratch version
+     * @param dbase the database it belongs to
+     * @param docid its docid
+     * @param version its version
+     * @return the query
+     */
+    static DBObject query( String dbase, String docid, String version )
+    {
+        BasicDBObject query = new BasicDBObject( JSONKeys.DOCID, docid );
+        query.put( JSONKeys.DBASE, dbase );
+        query.put( JSONKeys.VERSION1, version );
+        return query;
+    }
+    /**
+     * Make the query that picks out a record keyed by its docid alone. 
+     * Scratch versions of the same docid have a dbase as well.
+     * @param docid its docid
+     * @return the query
+     */
+    static DBObject query( String docid )
+    {
+        BasicDBObject query = new BasicDBObject( JSONKeys.DOCID, docid );
+        query.put( JSONKeys.DBASE, new BasicDBObject("$exists",false) );
+        return query;
+    }
+    /**
+     * Write a document if the one it replaces is at the revision expected
+     * @param coll the collection
+     * @param query the query that picks out the document
+     * @param doc the new document
+     * @param expected the revision it should have, 0 if it has none, 
+     * -1 if there should be no document, or ANY
+     * @return true if it was written
+     */
+    private static boolean update( DBCollection coll, DBObject query, 
+        DBObject doc, long expected )
+    {
+        if ( expected == ANY )
+            coll.update( query, doc, true, false );
+        else if ( expected == -1 )
+        {
+            // insert it unless someone else already has
+            WriteResult res = coll.update( query, 
+                new BasicDBObject("$setOnInsert",doc), true, false );
+            return !Boolean.TRUE.equals( res.getField("updatedExisting") );
+        }
+        else
+        {
+            // records from before revisions have none
+            if ( expected == 0 )
+                query.put( JSONKeys.REV, new BasicDBObject("$in",
+                    Arrays.asList(0L,null)) );
+            else
+                query.put( JSONKeys.REV, expected );
+            return coll.update( query, doc, false, false ).getN() > 0;
+        }
+        return true;
+    }
+    /**
+     * Write a scratch version, replacing any already there
+     * @param sv the version
+     * @param version the version to store it under
+     * @throws DbException 
+     */
+    public static void put( ScratchVersion sv, String version ) 
+        throws DbException
+    {
+        try
+        {
+            put( sv, version, ANY );
+        }
+        catch ( MMLConflictException e )
+        {
+            // can't happen
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Write a scratch version if the stored record is still at the 
+     * revision expected. With Mongo the check and the write are one 
+     * update; other repositories can only read the revision first.
+     * @param sv the version
+     * @param version the version to store it under
+     * @param expected the revision the record should have, 0 if it has 
+     * none, -1 if there should be no record, or ANY
+     * @throws DbException 
+     * @throws MMLConflictException if the record has another revision
+     */
+    public static void put( ScratchVersion sv, String version, 
+        long expected ) throws DbException, MMLConflictException
+    {
+        DBCollection coll = collection();
+        boolean matched = true;
+        if ( coll == null )
+        {
+            if ( expected != ANY )
+                matched = getRev(sv.dbase,sv.getDocid(),version) == expected;
+            if ( matched )
+                Connector.getConnection().putToDb( Database.SCRATCH, 
+                    sv.dbase, sv.getDocid(), version, sv.toJSON() );
+        }
+        else
+        {
+            try
+            {
+                DBObject doc = sv.toBSON();
+                doc.put( JSONKeys.VERSION1, version );
+                matched = update( coll, query(sv.dbase,sv.getDocid(),version), 
+                    doc, expected );
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( e );
+            }
+        }
+        if ( !matched )
+        {
+            long cur = getRev( sv.dbase, sv.getDocid(), version );
+            throw new MMLConflictException( sv.docid+","+version
+                +" is at revision "+cur+" not "+expected, cur );
+        }
+    }
+    /**
+     * Write a record keyed by its docid alone, like putToDb, if it is 
+     * still at the revision expected
+     * @param docid its docid
+     * @param json the record without its revision
+     * @param rev the revision to give it
+     * @param expected the revision it should have, 0 if it has none, 
+     * -1 if there should be no record, or ANY
+     * @throws DbException 
+     * @throws MMLConflictException if the record has another revision
+     */
+    public static void put( String docid, String json, long rev, 
+        long expected ) throws DbException, MMLConflictException
+    {
+        DBCollection coll = collection();
+        boolean matched = true;
+        if ( coll == null )
+        {
+            if ( expected != ANY )
+                matched = getRev(docid) == expected;
+            if ( matched )
+            {
+                JSONObject jObj = (JSONObject)JSONValue.parse( json );
+                jObj.put( JSONKeys.REV, rev );
+                Connector.getConnection().putToDb( Database.SCRATCH, 
+                    docid, jObj.toJSONString() );
+            }
+        }
+        else
+        {
+            try
+            {
+                DBObject doc = (DBObject)JSON.parse( json );
+                doc.put( JSONKeys.DOCID, docid );
+                doc.put( JSONKeys.REV, rev );
+                matched = update( coll, query(docid), doc, expected );
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( e );
+            }
+        }
+        if ( !matched )
+        {
+            long cur = getRev( docid );
+            throw new MMLConflictException( docid+" is at revision "+cur
+                +" not "+expected, cur );
+        }
+    }
+    /**
+     * Read a scratch version
+     * @param dbase the database it belongs to
+     * @param docid its docid
+     * @param version its version
+     * @return the version or null if it isn't there
+     * @throws DbException 
+     */
+    public static ScratchVersion get( String dbase, String docid, 
+        String version ) throws DbException
+    {
+        DBCollection coll = collection();
+        if ( coll == null )
+        {
+            String json = Connector.getConnection().getFromDb( 
+                Database.SCRATCH, dbase, docid, version );
+            return (json==null)?null:ScratchVersion.fromJSON( json );
+        }
+        else
+        {
+            try
+            {
+                DBObject doc = coll.findOne( query(dbase,docid,version) );
+                return (doc==null)?null:ScratchVersion.fromBSON( doc );
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( e );
+            }
+        }
+    }
+    /**
+     * Read a scratch version by its database id
+     * @param id the value of its _id field
+     * @return the version or null if it isn't there
+     * @throws DbException 
+     */
+    public static ScratchVersion getById( String id ) throws DbException
+    {
+        DBCollection coll = collection();
+        if ( coll == null )
+        {
+            String json = Connector.getConnection().getFromDbByField( 
+                Database.SCRATCH, id, JSONKeys._ID );
+            if ( json == null )
+                return null;
+            ScratchVersion sv = ScratchVersion.fromJSON( json );
+            sv.id = id;
+            return sv;
+        }
+        else
+        {
+            try
+            {
+                DBObject doc = coll.findOne( new BasicDBObject(JSONKeys._ID,
+                    new ObjectId(id)) );
+                return (doc==null)?null:ScratchVersion.fromBSON( doc );
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( e );
+            }
+        }
+    }
+    /**
+     * Find the scratch versions that the Reaper has work to do on: those 
+     * not yet merged and those kept long enough to be pruned. Only their 
+     * header fields are read, in one query.
+     * @return the versions found, without their layers
+     * @throws DbException 
+     */
+    public static ArrayList<ScratchVersion> scan() throws DbException
+    {
+        ArrayList<ScratchVersion> found = new ArrayList<ScratchVersion>();
+        DBCollection coll = collection();
+        if ( coll == null )
+        {
+            // no projections: read each one whole
+            String[] ids = Connector.getConnection().listCollectionByKey(
+                Database.SCRATCH, JSONKeys._ID );
+            for ( int i=0;i<ids.length;i++ )
+            {
+                ScratchVersion sv = getById( ids[i] );
+                if ( sv != null && (sv.dirty || sv.isOld()) )
+                    found.add( sv );
+            }
+            return found;
+        }
+        Date cutoff = new Date( System.currentTimeMillis()
+            -ScratchVersion.ONE_HOUR );
+        BasicDBList or = new BasicDBList();
+        or.add( new BasicDBObject("dirty",true) );
+        or.add( new BasicDBObject(JSONKeys.TIME,
+            new BasicDBObject("$lt",cutoff)) );
+        // older records have their time as a string
+        String old = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(cutoff);
+        or.add( new BasicDBObject(JSONKeys.TIME,
+            new BasicDBObject("$lt",old)) );
+        BasicDBObject fields = new BasicDBObject();
+        fields.put( JSONKeys.DOCID, 1 );
+        fields.put( JSONKeys.DBASE, 1 );
+        fields.put( JSONKeys.VERSION1, 1 );
+        fields.put( JSONKeys.LONGNAME, 1 );
+        fields.put( JSONKeys.TIME, 1 );
+        fields.put( "dirty", 1 );
+        fields.put( JSONKeys.REV, 1 );
+        DBCursor cursor = null;
+        try
+        {
+            cursor = coll.find( new BasicDBObject("$or",or), fields );
+            while ( cursor.hasNext() )
+                found.add( ScratchVersion.fromBSON(cursor.next()) );
+            return found;
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+        finally
+        {
+            if ( cursor != null )
+                cursor.close();
+        }
+    }
+    /**
+     * Mark merged scratch versions as clean, but only those whose records 
+     * still have the revision they were read at. A version saved again 
+     * since then stays dirty to be merged next time. With Mongo this is 
+     * one update, and saves need not wait for it.
+     * @param svs the merged versions, as read by getById
+     * @return the number marked clean
+     * @throws DbException 
+     */
+    public static int clean( ArrayList<ScratchVersion> svs ) 
+        throws DbException
+    {
+        if ( svs.isEmpty() )
+            return 0;
+        DBCollection coll = collection();
+        if ( coll == null )
+        {
+            // no conditional update: check each under its lock
+            int cleaned = 0;
+            Connection conn = Connector.getConnection();
+            for ( ScratchVersion sv : svs )
+            {
+                Revisions.Slot slot = Revisions.lock( sv.dbase, 
+                    sv.getDocid(), sv.version );
+                try
+                {
+                    if ( Revisions.current(slot) == sv.rev )
+                    {
+                        conn.updateByField( Database.SCRATCH, JSONKeys._ID,
+                            sv.id, "dirty", false );
+                        cleaned++;
+                    }
+                }
+                finally
+                {
+                    Revisions.unlock( slot );
+                }
+            }
+            return cleaned;
+        }
+        BasicDBList or = new BasicDBList();
+        for ( ScratchVersion sv : svs )
+        {
+            BasicDBObject match = new BasicDBObject( JSONKeys._ID, 
+                new ObjectId(sv.id) );
+            // records from before revisions have none
+            if ( sv.rev == 0 )
+                match.put( JSONKeys.REV, new BasicDBObject("$in",
+                    Arrays.asList(0L,null)) );
+            else
+                match.put( JSONKeys.REV, sv.rev );
+            or.add( match );
+        }
+        try
+        {
+            return coll.update( new BasicDBObject("$or",or), 
+                new BasicDBObject("$set",new BasicDBObject("dirty",false)), 
+                false, true ).getN();
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Read just the revision of a scratch version, not its layers
+     * @param dbase the database it belongs to
+     * @param docid its docid
+     * @param version its version
+     * @return its revision, 0 if it has none, or -1 if it isn't there
+     * @throws DbException 
+     */
+    public static long getRev( String dbase, String docid, String version ) 
+        throws DbException
+    {
+        Object rev;
+        DBCollection coll = collection();
+        if ( coll == null )
+        {
+            String json = Connector.getConnection().getFromDb( 
+                Database.SCRATCH, dbase, docid, version );
+            if ( json == null )
+                return -1;
+            rev = ((JSONObject)JSONValue.parse(json)).get( JSONKeys.REV );
+        }
+        else
+        {
+            try
+            {
+                DBObject doc = coll.findOne( query(dbase,docid,version), 
+                    new BasicDBObject(JSONKeys.REV,1) );
+                if ( doc == null )
+                    return -1;
+                rev = doc.get( JSONKeys.REV );
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( e );
+            }
+        }
+        return (rev instanceof Number)?((Number)rev).longValue():0;
+    }
+    /**
+     * Read just the revision of a record keyed by its docid alone
+     * @param docid its docid
+     * @return its revision, 0 if it has none, or -1 if it isn't there
+     * @throws DbException 
+     */
+    public static long getRev( String docid ) throws DbException
+    {
+        Object rev;
+        DBCollection coll = collection();
+        if ( coll == null )
+        {
+            String json = Connector.getConnection().getFromDb( 
+                Database.SCRATCH, docid );
+            if ( json == null )
+                return -1;
+            rev = ((JSONObject)JSONValue.parse(json)).get( JSONKeys.REV );
+        }
+        else
+        {
+            try
+            {
+                DBObject doc = coll.findOne( query(docid), 
+                    new BasicDBObject(JSONKeys.REV,1) );
+                if ( doc == null )
+                    return -1;
+                rev = doc.get( JSONKeys.REV );
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( e );
+            }
+        }
+        return (rev instanceof Number)?((Number)rev).longValue():0;
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.handler.scratch;
+
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import calliope.core.exception.DbException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import mml.Pools;
+import mml.exception.MMLConflictException;
+import mml.exception.MMLException;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Live scratch versions kept in memory. A save is done once its versions 
+ * are here and journalled, each record in its own file of the journal 
+ * directory; they are written to the SCRATCH collection in the 
+ * background, and only the latest of several saves of a record is 
+ * written. A record's file is deleted once that is written, so the 
+ * journal only holds what is still unwritten. Reads are served from here 
+ * first. If the server stops before the writes are done the journal is 
+ * replayed when it starts again. A write only replaces the revision of 
+ * the record it was based on. If someone else has written the record 
+ * meanwhile, or the write keeps failing, the save is given up and 
+ * appended to the rejects file beside the journal. Saves wait while too 
+ * many records are unwritten.
+ * @author desmond
+ */
+public class ScratchTier 
+{
+    /** the most versions kept once they have been written */
+    static final int MAX_ENTRIES = 256;
+    /** the most versions waiting to be written before saves wait */
+    static final int MAX_UNWRITTEN = 256;
+    /** milliseconds a save waits for the writes to catch up */
+    static final int MAX_WAIT = 30000;
+    /** milliseconds to wait before retrying a failed write */
+    static final int RETRY = 5000;
+    /** the most times a write is tried */
+    static final int MAX_TRIES = 12;
+    /** the stored revision of a record not yet looked up */
+    static final long UNKNOWN = -2;
+    /** path of the journal directory */
+    public static String journal = new File( 
+        System.getProperty("java.io.tmpdir"), "mml-scratch-journal" ).getPath();
+    /** versions by dbase, docid and version, least recently used first */
+    static LinkedHashMap<String,Live> entries = 
+        new LinkedHashMap<String,Live>(16,0.75f,true) {
+            protected boolean removeEldestEntry( Map.Entry<String,Live> eldest )
+            {
+                if ( size() <= MAX_ENTRIES )
+                    return false;
+                // versions not yet written must stay: pass over them
+                Iterator<Live> iter = values().iterator();
+                while ( iter.hasNext() )
+                {
+                    if ( iter.next().written )
+                    {
+                        iter.remove();
+                        break;
+                    }
+                }
+                return false;
+            }
+        };
+    /** number of entries not yet written */
+    static int unwritten;
+    /** lock on the journal, taken before the lock on the class */
+    static final Object JOURNAL = new Object();
+    /**
+     * A version in memory
+     */
+    static class Live
+    {
+        String key;
+        /** the latest content */
+        ScratchVersion sv;
+        /** hash of its content */
+        String hash;
+        /** true if sv is what the SCRATCH collection holds */
+        boolean written;
+        /** true if a write of it is queued or under way */
+        boolean queued;
+        /** the revision the SCRATCH collection holds, -1 if none */
+        long stored = UNKNOWN;
+        Live( String key, ScratchVersion sv, String hash, boolean written )
+        {
+            this.key = key;
+            this.sv = sv;
+            this.hash = hash;
+            this.written = written;
+        }
+    }
+    /**
+     * Get a version from memory
+     * @param dbase the database it belongs to
+     * @param docid its docid
+     * @param version its version
+     * @return the version or null if we don't have it
+     */
+    public static synchronized ScratchVersion get( String dbase, 
+        String docid, String version )
+    {
+        Live e = entries.get( Revisions.key(dbase,docid,version) );
+        return (e==null)?null:e.sv;
+    }
+    /**
+     * Get the revision of a version in memory
+     * @param key its key made by Revisions.key
+     * @return its revision or null if we don't have it
+     */
+    static synchronized Long getRev( String key )
+    {
+        Live e = entries.get( key );
+        return (e==null)?null:e.sv.rev;
+    }
+    /**
+     * Is this the content we already have?
+     * @param sv a version about to be saved
+     * @param hash the hash of its content
+     * @return true if it is the same as what is here, or if we don't have 
+     * it, as what was last written
+     */
+    static synchronized boolean isSaved( ScratchVersion sv, String hash )
+    {
+        String key = Revisions.key( sv.dbase, sv.getDocid(), sv.version );
+        Live e = entries.get( key );
+        if ( e != null )
+            return hash.equals(e.hash);
+        else
+            return ScratchBatch.isWritten( Database.SCRATCH, sv.getDocid(), 
+                sv.dbase+"#"+sv.version, hash );
+    }
+    /**
+     * Keep a version that is already in the SCRATCH collection
+     * @param sv the version
+     * @param version the version it is stored under
+     */
+    static synchronized void cache( ScratchVersion sv, String version )
+    {
+        String key = Revisions.key( sv.dbase, sv.getDocid(), version );
+        if ( !entries.containsKey(key) )
+        {
+            Live e = new Live( key, sv, sv.getHash(), true );
+            e.stored = sv.rev;
+            entries.put( key, e );
+        }
+    }
+    /**
+     * Forget a version removed from the SCRATCH collection
+     * @param key its key made by Revisions.key
+     */
+    static synchronized void drop( String key )
+    {
+        Live e = entries.get( key );
+        if ( e != null && e.written )
+            entries.remove( key );
+    }
+    /**
+     * Get the journal file of a record
+     * @param key its key made by Revisions.key
+     * @return the file, named after the hash of the key
+     */
+    private static File file( String key )
+    {
+        return new File( journal, ScratchVersion.hash(key)+".json" );
+    }
+    /**
+     * Replace the journal file of a record. The new content is synced 
+     * before it takes the old one's place, so a crash leaves one or the 
+     * other.
+     * @param key the record's key
+     * @param line its content
+     * @throws IOException 
+     */
+    private static void journal( String key, String line ) 
+        throws IOException
+    {
+        File f = file( key );
+        File tmp = new File( journal, f.getName()+".tmp" );
+        FileOutputStream fos = new FileOutputStream( tmp );
+        try
+        {
+            fos.write( line.getBytes("UTF-8") );
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+        if ( !tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)) )
+            throw new IOException("Couldn't replace "+f);
+    }
+    /**
+     * Wait while too many versions are waiting to be written. The 
+     * caller must not hold any locks.
+     * @throws MMLException if they didn't catch up in time
+     */
+    static synchronized void await() throws MMLException
+    {
+        long end = System.currentTimeMillis()+MAX_WAIT;
+        while ( unwritten >= MAX_UNWRITTEN )
+        {
+            long left = end-System.currentTimeMillis();
+            if ( left <= 0 )
+                throw new MMLException( unwritten
+                    +" saves are still waiting to be written" );
+            try
+            {
+                ScratchTier.class.wait( left );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new MMLException( e );
+            }
+        }
+    }
+    /**
+     * Get the stored revision of a record we have in memory
+     * @param key its key made by Revisions.key
+     * @return its revision, -1 if it isn't stored, or UNKNOWN
+     */
+    private static synchronized long stored( String key )
+    {
+        Live e = entries.get( key );
+        return (e==null)?UNKNOWN:e.stored;
+    }
+    /**
+     * Make the line of the journal that holds a version
+     * @param sv the version
+     * @return its JSON with its docid, ending in a newline
+     */
+    private static String line( ScratchVersion sv )
+    {
+        JSONObject jObj = (JSONObject)JSONValue.parse( sv.toJSON() );
+        jObj.put( JSONKeys.DOCID, sv.getDocid() );
+        return jObj.toJSONString()+"\n";
+    }
+    /**
+     * Accept the versions of a save. The caller must hold their locks.
+     * @param svs the versions that changed
+     * @throws MMLException if they couldn't be journalled
+     */
+    static void put( ScratchVersion... svs ) throws MMLException
+    {
+        String[] lines = new String[svs.length];
+        // what each write will expect to replace
+        long[] stored = new long[svs.length];
+        for ( int i=0;i<svs.length;i++ )
+        {
+            ScratchVersion sv = svs[i];
+            stored[i] = stored( Revisions.key(sv.dbase,sv.getDocid(),
+                sv.version) );
+            if ( stored[i] == UNKNOWN )
+            {
+                try
+                {
+                    stored[i] = ScratchStore.getRev( sv.dbase, 
+                        sv.getDocid(), sv.version );
+                }
+                catch ( DbException e )
+                {
+                    throw new MMLException( e );
+                }
+            }
+            lines[i] = line( sv );
+        }
+        // readers don't wait for the disk: they only lock the class
+        synchronized ( JOURNAL )
+        {
+            try
+            {
+                new File( journal ).mkdirs();
+                for ( int i=0;i<svs.length;i++ )
+                    journal( Revisions.key(svs[i].dbase,svs[i].getDocid(),
+                        svs[i].version), lines[i] );
+            }
+            catch ( IOException e )
+            {
+                throw new MMLException( e );
+            }
+            synchronized ( ScratchTier.class )
+            {
+                for ( int i=0;i<svs.length;i++ )
+                    accept( svs[i], stored[i] );
+            }
+        }
+    }
+    /**
+     * Keep a version until it is written, and queue the write
+     * @param sv the version
+     * @param stored the revision the record has in the SCRATCH 
+     * collection, -1 if none, or UNKNOWN
+     */
+    private static void accept( ScratchVersion sv, long stored )
+    {
+        String key = Revisions.key( sv.dbase, sv.getDocid(), sv.version );
+        Live e = entries.get( key );
+        if ( e == null )
+        {
+            e = new Live( key, sv, sv.getHash(), false );
+            e.stored = stored;
+            entries.put( key, e );
+            unwritten++;
+        }
+        else
+        {
+            if ( e.stored == UNKNOWN )
+                e.stored = stored;
+            if ( e.written )
+                unwritten++;
+            e.sv = sv;
+            e.hash = sv.getHash();
+            e.written = false;
+        }
+        if ( !e.queued )
+        {
+            e.queued = true;
+            final Live entry = e;
+            Pools.IO.submit( new Runnable() {
+                public void run()
+                {
+                    write( entry );
+                }
+            });
+        }
+    }
+    /**
+     * Write an entry to the SCRATCH collection until what is written is 
+     * its latest content
+     * @param e the entry
+     */
+    static void write( Live e )
+    {
+        int tries = 0;
+        while ( true )
+        {
+            ScratchVersion sv;
+            String hash;
+            long expected;
+            synchronized ( ScratchTier.class )
+            {
+                if ( e.written )
+                {
+                    e.queued = false;
+                    break;
+                }
+                sv = e.sv;
+                hash = e.hash;
+                expected = e.stored;
+            }
+            try
+            {
+                if ( expected == UNKNOWN )
+                {
+                    // recovered from the journal: it may be there already
+                    expected = ScratchStore.getRev( sv.dbase, sv.getDocid(),
+                        sv.version );
+                    if ( expected > sv.rev )
+                        throw new MMLConflictException( sv.docid+","
+                            +sv.version+" is at revision "+expected, expected );
+                }
+                if ( expected != sv.rev )
+                    ScratchStore.put( sv, sv.version, expected );
+                ScratchBatch.setWritten( Database.SCRATCH, sv.getDocid(), 
+                    sv.dbase+"#"+sv.version, hash );
+                tries = 0;
+                // a save journalling a later version holds JOURNAL
+                synchronized ( JOURNAL )
+                {
+                    boolean done = false;
+                    synchronized ( ScratchTier.class )
+                    {
+                        e.stored = sv.rev;
+                        if ( e.sv == sv )
+                        {
+                            e.written = done = true;
+                            unwritten--;
+                            ScratchTier.class.notifyAll();
+                        }
+                    }
+                    if ( done )
+                        file( e.key ).delete();
+                }
+            }
+            catch ( MMLConflictException ex )
+            {
+                reject( e, ex.getMessage() );
+                break;
+            }
+            catch ( Exception ex )
+            {
+                System.out.println("Error saving "+sv.docid+","+sv.version
+                    +": "+ex.getMessage());
+                if ( ++tries == MAX_TRIES )
+                {
+                    // e.g. too big to store: retrying won't help
+                    reject( e, "failed "+tries+" times" );
+                    break;
+                }
+                try
+                {
+                    Thread.sleep( RETRY );
+                }
+                catch ( InterruptedException ie )
+                {
+                    // the journal still has it
+                    synchronized ( ScratchTier.class )
+                    {
+                        e.queued = false;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+    /**
+     * Give up on writing an entry, because the record has been written 
+     * by someone else or can't be written. Its content is moved from the 
+     * journal to the rejects file, and it is dropped with its revision so 
+     * that the next save of it checks against what is stored.
+     * @param e the entry
+     * @param why the reason
+     */
+    private static void reject( Live e, String why )
+    {
+        ScratchVersion sv;
+        synchronized ( ScratchTier.class )
+        {
+            sv = e.sv;
+        }
+        Revisions.Slot slot = Revisions.lock( sv.dbase, sv.getDocid(), 
+            sv.version );
+        String rejects = journal+".rejected";
+        try
+        {
+            // no save of it can be journalled while we hold its lock
+            synchronized ( JOURNAL )
+            {
+                synchronized ( ScratchTier.class )
+                {
+                    sv = e.sv;
+                    if ( !e.written )
+                    {
+                        unwritten--;
+                        ScratchTier.class.notifyAll();
+                    }
+                    e.written = true;
+                    e.queued = false;
+                    if ( entries.get(e.key) == e )
+                        entries.remove( e.key );
+                }
+                try
+                {
+                    FileOutputStream fos = new FileOutputStream( rejects, 
+                        true );
+                    try
+                    {
+                        fos.write( line(sv).getBytes("UTF-8") );
+                    }
+                    finally
+                    {
+                        fos.close();
+                    }
+                    file( e.key ).delete();
+                }
+                catch ( IOException ex )
+                {
+                    // it stays in the journal
+                    System.out.println("Couldn't write "+rejects+": "
+                        +ex.getMessage());
+                }
+            }
+            Revisions.forget( slot );
+        }
+        finally
+        {
+            Revisions.unlock( slot );
+        }
+        System.out.println("Gave up saving "+sv.docid+","+sv.version+": "
+            +why+". It was added to "+rejects);
+    }
+    /**
+     * Reload the saves left in the journal when the server last stopped 
+     * and queue them to be written again
+     */
+    public static void recover()
+    {
+        File[] files = new File( journal ).listFiles();
+        if ( files == null || files.length == 0 )
+            return;
+        ArrayList<ScratchVersion> svs = new ArrayList<ScratchVersion>();
+        for ( File f : files )
+        {
+            // a save cut off part way through was never accepted
+            if ( !f.getName().endsWith(".json") )
+            {
+                f.delete();
+                continue;
+            }
+            try
+            {
+                BufferedReader r = new BufferedReader( new InputStreamReader(
+                    new FileInputStream(f),"UTF-8") );
+                try
+                {
+                    String line = r.readLine();
+                    if ( line != null && JSONValue.parse(line) != null )
+                        svs.add( ScratchVersion.fromJSON(line) );
+                }
+                finally
+                {
+                    r.close();
+                }
+            }
+            catch ( Exception e )
+            {
+                System.out.println("Couldn't read "+f+": "+e.getMessage());
+            }
+        }
+        synchronized ( ScratchTier.class )
+        {
+            for ( ScratchVersion sv : svs )
+                accept( sv, UNKNOWN );
+        }
+        System.out.println("Recovered "+svs.size()+" save(s) from "+journal);
+    }
+}
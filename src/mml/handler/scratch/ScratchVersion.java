@@ -17,17 +17,25 @@
  */
 package mml.handler.scratch;
 import calliope.core.constants.JSONKeys;
-import java.util.HashMap;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
-import java.util.Set;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Comparator;
 import org.json.simple.JSONValue;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BSONObject;
+import org.apache.commons.codec.binary.Base64;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.text.ParsePosition;
+import java.security.MessageDigest;
 
 /**
  * A scratch version will be stored in the scratch database
@@ -45,11 +53,37 @@ public class ScratchVersion {
     String docid;
     /** flag to indicate if changed */
     public boolean dirty;
+    /** number of times the scratch record has been written */
+    long rev;
+    /** the _id of the record it was read from, if any */
+    String id;
     /** Time resource was last modified/fetched */
     Date time;
-    /** map to prevent same layer being added twice */
-    HashMap<String,String> layers;
+    /** layer numbers in ascending order, each only once */
+    int[] nums;
+    /** the layers' text in UTF-8, or null if not yet decoded */
+    byte[][] bodies;
+    /** scripts that rebuild the layers from the last, or null if whole */
+    byte[][] deltas;
+    /** where to get the layers not yet decoded */
+    LayerSource[] pending;
+    /** content hashes of the layers, or null if not yet worked out */
+    String[] hashes;
+    /** number of layers */
+    int count;
     static final long ONE_HOUR = 3600000L;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * Something that can produce the text of a layer when first needed
+     */
+    public interface LayerSource
+    {
+        /**
+         * Decode the layer
+         * @return its raw character data
+         */
+        char[] load();
+    }
     /**
      * Create a Scratch version from SCRATCH
      * @param name the name or vid of this version
@@ -68,6 +102,11 @@ public class ScratchVersion {
         this.docid = docid;
         this.dirty = dirty;
         this.time = (time!=null)?time:Calendar.getInstance().getTime();
+        this.nums = new int[2];
+        this.bodies = new byte[2][];
+        this.deltas = new byte[2][];
+        this.pending = new LayerSource[2];
+        this.hashes = new String[2];
     }
     /**
      * Remove the /layer-x suffix
@@ -84,13 +123,67 @@ public class ScratchVersion {
         }
         return name;
     }
-    public int size()
+    public synchronized int size()
     {
-        return (layers==null)?0:layers.size();
+        return count;
     }
     public boolean isSimple()
     {
-        return layers != null && layers.size()==1;
+        return size()==1;
+    }
+    /**
+     * Find a layer
+     * @param num its number
+     * @return its index or -1 if not there
+     */
+    private int indexOf( int num )
+    {
+        int index = Arrays.binarySearch( nums, 0, count, num );
+        return (index<0)?-1:index;
+    }
+    /**
+     * Make room for a layer, or find the one it replaces
+     * @param num the layer's number
+     * @return its index
+     */
+    private int slot( int num )
+    {
+        int index = Arrays.binarySearch( nums, 0, count, num );
+        if ( index >= 0 )
+            return index;
+        index = -index-1;
+        if ( count == nums.length )
+        {
+            int newLen = count*2;
+            nums = Arrays.copyOf( nums, newLen );
+            bodies = Arrays.copyOf( bodies, newLen );
+            deltas = Arrays.copyOf( deltas, newLen );
+            pending = Arrays.copyOf( pending, newLen );
+            hashes = Arrays.copyOf( hashes, newLen );
+        }
+        int tail = count-index;
+        System.arraycopy( nums, index, nums, index+1, tail );
+        System.arraycopy( bodies, index, bodies, index+1, tail );
+        System.arraycopy( deltas, index, deltas, index+1, tail );
+        System.arraycopy( pending, index, pending, index+1, tail );
+        System.arraycopy( hashes, index, hashes, index+1, tail );
+        nums[index] = num;
+        count++;
+        return index;
+    }
+    /**
+     * Encode text as UTF-8
+     * @param text the text
+     * @return its bytes
+     */
+    private static byte[] encode( CharSequence text )
+    {
+        if ( text instanceof String )
+            return ((String)text).getBytes( UTF8 );
+        ByteBuffer bb = UTF8.encode( CharBuffer.wrap(text) );
+        byte[] bytes = new byte[bb.remaining()];
+        bb.get( bytes );
+        return bytes;
     }
     /**
      * Get the docid 
@@ -100,6 +193,30 @@ public class ScratchVersion {
     {
         return this.docid;
     }
+    /**
+     * Get the version name minus any layer 
+     * @return the version name 
+     */
+    public String getVersion()
+    {
+        return this.version;
+    }
+    /**
+     * Get the database id of the scratch record this came from
+     * @return its _id or null
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+    /**
+     * Get the revision of the scratch record this came from
+     * @return the revision or 0 if never written
+     */
+    public long getRev()
+    {
+        return this.rev;
+    }
     /**
      * Get the dbase we belong to, ultimately, dude 
      * @return the dbase 
@@ -140,35 +257,100 @@ public class ScratchVersion {
      */
     public void addLayer( char[] vdata, int num )
     {
-        if ( layers == null )
-            layers = new HashMap<String,String>();
-        layers.put( layerName(num), new String(vdata) );
+        addLayer( CharBuffer.wrap(vdata), num );
     }
-    public boolean containsLayer( int num )
+    /**
+     * Add a layer already in text form
+     * @param body the layer's text
+     * @param num the number of the layer (Integer.MAX_VALUE = "-layer-final")
+     */
+    public synchronized void addLayer( CharSequence body, int num )
     {
-        String name = layerName(num);
-        return this.layers.containsKey(name);
+        int index = replace( num );
+        bodies[index] = encode( body );
+        compact( index );
     }
     /**
-     * Get the true name of the default version
-     * @return a real vpath
+     * Add a layer that will only be decoded when someone asks for it
+     * @param src the source of the layer's data
+     * @param num the number of the layer (Integer.MAX_VALUE = "-layer-final")
+     */
+    public synchronized void addLayer( LayerSource src, int num )
+    {
+        int index = replace( num );
+        pending[index] = src;
+        compact( index );
+    }
+    /**
+     * Clear the way for a layer's new content. The other layers are 
+     * rebuilt first if it is the base they are stored against.
+     * @param num the layer's number
+     * @return its index, now empty
+     */
+    private int replace( int num )
+    {
+        if ( count > 0 && num >= nums[count-1] )
+            expand();
+        int index = slot( num );
+        bodies[index] = null;
+        deltas[index] = null;
+        pending[index] = null;
+        hashes[index] = null;
+        return index;
+    }
+    /**
+     * Rebuild all the layers kept as scripts
      */
-    public String getDefaultVersion()
+    private void expand()
     {
-        Set<String> keys = layers.keySet();
-        Iterator<String> iter = keys.iterator();
-        int lay = 0;
-        String dfltVersion = "";
-        while ( iter.hasNext() )
+        for ( int i=0;i<count;i++ )
         {
-            String key = iter.next();
-            int num = layerNumber(key);
-            if ( num > lay )
+            if ( deltas[i] != null )
             {
-                lay = num;
-                dfltVersion = key;
+                bodies[i] = loadLayer( i );
+                deltas[i] = null;
             }
         }
+    }
+    /**
+     * Keep a layer just added as a script that rebuilds it from the last, 
+     * if that is much smaller, or every other layer if it is the last. 
+     * Layers not yet decoded or read are left as they are.
+     * @param index the index of the layer just added
+     */
+    private void compact( int index )
+    {
+        byte[] base = bodies[count-1];
+        if ( count < 2 || base == null )
+            return;
+        int from = (index==count-1)?0:index;
+        int to = (index==count-1)?count-1:index+1;
+        for ( int i=from;i<to;i++ )
+        {
+            if ( deltas[i] == null && bodies[i] != null )
+            {
+                byte[] delta = LayerDelta.encode( base, bodies[i] );
+                if ( delta.length < bodies[i].length*3/4 )
+                {
+                    deltas[i] = delta;
+                    bodies[i] = null;
+                }
+            }
+        }
+    }
+    public synchronized boolean containsLayer( int num )
+    {
+        return indexOf(num) != -1;
+    }
+    /**
+     * Get the true name of the default version
+     * @return a real vpath
+     */
+    public synchronized String getDefaultVersion()
+    {
+        // the highest numbered layer comes last
+        String dfltVersion = (count>0&&nums[count-1]>0)
+            ?layerName(nums[count-1]):"";
         return this.version+"/"+dfltVersion;
     }
     /**
@@ -178,35 +360,125 @@ public class ScratchVersion {
      */
     public String getLayerString( int layer )
     {
-        Set<String> keys = layers.keySet();
-        Iterator<String> iter = keys.iterator();
-        while ( iter.hasNext() )
+        CharSequence text = getLayer( layer );
+        return (text==null)?null:text.toString();
+    }
+    /**
+     * Get the text of a layer, decoded only now
+     * @param layer the layer number
+     * @return the layer contents or null
+     */
+    public synchronized CharSequence getLayer( int layer )
+    {
+        int index = indexOf( layer );
+        return (index==-1)?null:new String( loadLayer(index), UTF8 );
+    }
+    /**
+     * Get the UTF-8 of a layer, fetching it first if need be
+     * @param index the layer's index
+     * @return its contents
+     */
+    private byte[] loadLayer( int index )
+    {
+        if ( pending[index] != null )
         {
-            String layerName = iter.next();
-            if ( ScratchVersion.layerNumber(layerName) == layer )
+            bodies[index] = encode( CharBuffer.wrap(pending[index].load()) );
+            pending[index] = null;
+        }
+        else if ( bodies[index] == null && deltas[index] != null )
+            return LayerDelta.apply( loadLayer(count-1), deltas[index] );
+        return bodies[index];
+    }
+    /**
+     * Hash some text so that identical content can be recognised
+     * @param str the text
+     * @return its SHA-1 digest in hex
+     */
+    public static String hash( String str )
+    {
+        return hash( str.getBytes(UTF8) );
+    }
+    /**
+     * Hash the UTF-8 of some text
+     * @param bytes the text's bytes
+     * @return its SHA-1 digest in hex, the same as hash() of the text
+     */
+    static String hash( byte[] bytes )
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest( bytes );
+            StringBuilder sb = new StringBuilder( digest.length*2 );
+            for ( int i=0;i<digest.length;i++ )
             {
-                String body = layers.get(layerName);
-                return body;
+                sb.append( Character.forDigit((digest[i]>>4)&0xF,16) );
+                sb.append( Character.forDigit(digest[i]&0xF,16) );
             }
+            return sb.toString();
+        }
+        catch ( Exception e )
+        {
+            // SHA-1 is always there
+            throw new RuntimeException( e );
         }
-        return null;
     }
     /**
-     * Get an array of layer numbers
-     * @return an int array
+     * Get the content hash of a layer, working it out if need be
+     * @param index the layer's index
+     * @return its hash
+     */
+    private String layerHash( int index )
+    {
+        if ( hashes[index] == null )
+            hashes[index] = hash( loadLayer(index) );
+        return hashes[index];
+    }
+    /**
+     * Get the layer names in the order they are written out
+     * @return the indices of the layers sorted by name
      */
-    public int[] getLayerNumbers()
+    private Integer[] byName()
     {
-        int[] arr = new int[layers.size()];
-        Set<String> keys = layers.keySet();
-        Iterator<String> iter = keys.iterator();
-        int i = 0;
-        while ( iter.hasNext() )
+        Integer[] order = new Integer[count];
+        for ( int i=0;i<count;i++ )
+            order[i] = i;
+        Arrays.sort( order, new Comparator<Integer>() {
+            public int compare( Integer a, Integer b )
+            {
+                return layerName(nums[a]).compareTo(layerName(nums[b]));
+            }
+        });
+        return order;
+    }
+    /**
+     * Get a hash of the whole version: its names and all its layers. Two 
+     * versions with the same hash have the same content.
+     * @return a hex digest
+     */
+    public synchronized String getHash()
+    {
+        StringBuilder sb = new StringBuilder( version );
+        sb.append( '\n' );
+        if ( longName != null )
+            sb.append( longName );
+        Integer[] order = byName();
+        for ( int i=0;i<order.length;i++ )
         {
-            String key = iter.next();
-            arr[i++] = ScratchVersion.layerNumber(key);
+            sb.append( '\n' );
+            sb.append( layerName(nums[order[i]]) );
+            sb.append( ':' );
+            sb.append( layerHash(order[i]) );
         }
-        return arr;
+        return hash( sb.toString() );
+    }
+    /**
+     * Get an array of layer numbers
+     * @return an int array
+     */
+    public synchronized int[] getLayerNumbers()
+    {
+        return Arrays.copyOf( nums, count );
     }
     static String simpleName( String name )
     {
@@ -221,15 +493,12 @@ public class ScratchVersion {
      * Convert this version to JSON so it can stored in the database
      * @return the entire version as a string
      */
-    public String toJSON()
+    public synchronized String toJSON()
     {
         JSONObject jObj = new JSONObject();
-        if ( layers != null )
+        if ( count > 0 )
         {
-            Set<String> keys = layers.keySet();
-            String[] arr = new String[keys.size()];
-            keys.toArray(arr);
-            Arrays.sort(arr);
+            Integer[] order = byName();
             jObj.put( JSONKeys.VERSION1, version );
             if ( this.longName != null )
                 jObj.put(JSONKeys.LONGNAME, longName);
@@ -239,13 +508,19 @@ public class ScratchVersion {
             jObj.put(JSONKeys.TIME, sdf.format(cal.getTime()) );
             jObj.put("dbase", dbase);
             jObj.put("dirty", dirty);
+            jObj.put(JSONKeys.REV, rev);
             JSONArray jArr = new JSONArray();
             jObj.put( "layers", jArr );
-            for ( int i=0;i<arr.length;i++ )
+            for ( int i=0;i<order.length;i++ )
             {
+                int index = order[i];
                 JSONObject jLayer = new JSONObject();
-                jLayer.put(JSONKeys.NAME,arr[i]);
-                jLayer.put(JSONKeys.BODY,layers.get(arr[i]));
+                jLayer.put(JSONKeys.NAME,layerName(nums[index]));
+                jLayer.put("hash",layerHash(index));
+                if ( deltas[index] != null )
+                    jLayer.put("delta",Base64.encodeBase64String(deltas[index]));
+                else
+                    jLayer.put(JSONKeys.BODY,new String(loadLayer(index),UTF8));
                 jArr.add(jLayer);
             }
         }
@@ -291,6 +566,9 @@ public class ScratchVersion {
             (String)jObj.get(JSONKeys.DBASE),
             saveTime,
             dirty);
+        Object rev = jObj.get(JSONKeys.REV);
+        if ( rev instanceof Number )
+            sv.rev = ((Number)rev).longValue();
         JSONArray jArr = (JSONArray)jObj.get("layers");
         if ( jArr != null )
         {
@@ -299,8 +577,97 @@ public class ScratchVersion {
                 JSONObject jLayer = (JSONObject)jArr.get(i);
                 String layerName = (String)jLayer.get(JSONKeys.NAME);
                 String body = (String)jLayer.get(JSONKeys.BODY);
-                int layerNum = layerNumber(layerName);
-                sv.addLayer(body.toCharArray(),layerNum);
+                String delta = (String)jLayer.get("delta");
+                int index = sv.slot( layerNumber(layerName) );
+                // scripts need the last layer, which may come later
+                if ( delta != null )
+                    sv.deltas[index] = Base64.decodeBase64( delta );
+                else
+                    sv.bodies[index] = encode( body );
+                // records written before hashes were kept lack them
+                sv.hashes[index] = (String)jLayer.get("hash");
+            }
+        }
+        return sv;
+    }
+    /**
+     * Convert this version to BSON for the scratch collection. The bodies 
+     * go in as binary UTF-8, so they need no escaping.
+     * @return the version as a BSON document
+     */
+    public synchronized DBObject toBSON()
+    {
+        BasicDBObject doc = new BasicDBObject();
+        doc.put( JSONKeys.DOCID, docid );
+        doc.put( JSONKeys.DBASE, dbase );
+        doc.put( JSONKeys.VERSION1, version );
+        if ( longName != null )
+            doc.put( JSONKeys.LONGNAME, longName );
+        doc.put( JSONKeys.TIME, Calendar.getInstance().getTime() );
+        doc.put( "dirty", dirty );
+        doc.put( JSONKeys.REV, rev );
+        BasicDBList list = new BasicDBList();
+        Integer[] order = byName();
+        for ( int i=0;i<order.length;i++ )
+        {
+            int index = order[i];
+            BasicDBObject layer = new BasicDBObject();
+            layer.put( JSONKeys.NAME, layerName(nums[index]) );
+            layer.put( "hash", layerHash(index) );
+            if ( deltas[index] != null )
+                layer.put( "delta", deltas[index] );
+            else
+                layer.put( JSONKeys.BODY, loadLayer(index) );
+            list.add( layer );
+        }
+        doc.put( "layers", list );
+        return doc;
+    }
+    /**
+     * Convert a BSON document from the scratch collection to a version. 
+     * Older records hold their dates and bodies as strings.
+     * @param doc the document, perhaps without its layer bodies
+     * @return a ScratchVersion with whatever layers it had bodies for
+     */
+    public static ScratchVersion fromBSON( BSONObject doc )
+    {
+        Object dirty = doc.get("dirty");
+        Object time = doc.get(JSONKeys.TIME);
+        Date saveTime = (time instanceof Date)?(Date)time
+            :(time instanceof String)?toDate((String)time):null;
+        ScratchVersion sv = new ScratchVersion(
+            (String)doc.get(JSONKeys.VERSION1),
+            (String)doc.get(JSONKeys.LONGNAME),
+            (String)doc.get(JSONKeys.DOCID),
+            (String)doc.get(JSONKeys.DBASE),
+            saveTime,
+            (dirty instanceof Boolean)?(Boolean)dirty:false);
+        Object id = doc.get(JSONKeys._ID);
+        if ( id != null )
+            sv.id = id.toString();
+        Object rev = doc.get(JSONKeys.REV);
+        if ( rev instanceof Number )
+            sv.rev = ((Number)rev).longValue();
+        Object layers = doc.get("layers");
+        if ( layers instanceof List )
+        {
+            for ( Object o : (List)layers )
+            {
+                BSONObject layer = (BSONObject)o;
+                Object body = layer.get(JSONKeys.BODY);
+                Object delta = layer.get("delta");
+                if ( body == null && delta == null )
+                    continue;
+                int layerNum = layerNumber((String)layer.get(JSONKeys.NAME));
+                int index = sv.slot( layerNum );
+                // scripts need the last layer, which may come later
+                if ( delta != null )
+                    sv.deltas[index] = (byte[])delta;
+                // binary bodies are already UTF-8
+                else
+                    sv.bodies[index] = (body instanceof byte[])?(byte[])body
+                        :encode(body.toString());
+                sv.hashes[index] = (String)layer.get("hash");
             }
         }
         return sv;
@@ -174,7 +174,7 @@ public class ScratchVersionSet {
                     longName = "Version "+version1;
                 ScratchVersion sv = new ScratchVersion(version1,longName,
                     docid, dbase,null,false);
-                sv.addLayer( body.toCharArray(), Integer.MAX_VALUE );
+                sv.addLayer( body, Integer.MAX_VALUE );
                 appendToList( sv );
             }
         }        
@@ -194,6 +194,14 @@ public class ScratchVersionSet {
             this.list = newList;
         }
     }
+    /**
+     * Get the versions in this set
+     * @return an array of scratch versions, maybe empty
+     */
+    public ScratchVersion[] getVersions()
+    {
+        return (list==null)?new ScratchVersion[0]:list;
+    }
     public String getDocid() throws ArrayIndexOutOfBoundsException
     {
         if ( this.list == null || this.list.length==0 )
@@ -275,6 +283,11 @@ public class ScratchVersionSet {
         }
         else
             throw new MMLException("ScratchVersion list is empty");
+        // note what each version holds so unchanged saves can be spotted
+        JSONObject jHashes = new JSONObject();
+        for ( int i=0;i<list.length;i++ )
+            jHashes.put( list[i].version, list[i].getHash() );
+        jObj.put( "hashes", jHashes );
         // check style is set optimally
         String styleName = (String)jObj.get(JSONKeys.STYLE);
         if ( styleName == null || styleName.equals("default") )
@@ -319,6 +332,27 @@ public class ScratchVersionSet {
         }
         return jObj.toJSONString();
     }
+    /**
+     * Does a database resource already hold these versions exactly?
+     * @param resource the resource fetched from the database
+     * @param versions the versions about to be merged into it
+     * @return true if every version's hash matches the one recorded there
+     */
+    public static boolean holds( String resource, ScratchVersion[] versions )
+    {
+        JSONObject jObj = (JSONObject)JSONValue.parse(resource);
+        Object jHashes = jObj.get("hashes");
+        if ( !(jHashes instanceof JSONObject) )
+            return false;
+        for ( int i=0;i<versions.length;i++ )
+        {
+            String stored = (String)((JSONObject)jHashes).get(
+                versions[i].version);
+            if ( stored == null || !stored.equals(versions[i].getHash()) )
+                return false;
+        }
+        return true;
+    }
     /**
      * Replace our versions with those in other
      * @param other the other ScratchVersionSet
@@ -0,0 +1,74 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+import calliope.AeseSpeller;
+
+/**
+ * Speller backed by the native aspell library via JNI
+ * @author desmond
+ */
+public class AspellSpeller implements Speller
+{
+    AeseSpeller speller;
+    String lang;
+    /**
+     * Load the aspell dictionary for a language
+     * @param lang the language code e.g. "en_GB"
+     * @throws Exception if aspell couldn't load it
+     */
+    public AspellSpeller( String lang ) throws Exception
+    {
+        this.lang = lang;
+        this.speller = new AeseSpeller( lang );
+    }
+    public boolean hasWord( String word )
+    {
+        return speller.hasWord( word, lang );
+    }
+    public boolean isHardHyphen( String last, String next )
+    {
+        return speller.isHardHyphen( last, next );
+    }
+    /**
+     * The native library has no array call, so this just saves the 
+     * caller from leasing a speller per hyphen
+     * @param last the previous 'words', one per hyphen
+     * @param next the words on the next lines, one per hyphen
+     * @return an array of answers, true for hard hyphens
+     */
+    public boolean[] areHardHyphens( String[] last, String[] next )
+    {
+        boolean[] res = new boolean[last.length];
+        for ( int i=0;i<last.length;i++ )
+            res[i] = speller.isHardHyphen( last[i], next[i] );
+        return res;
+    }
+    /**
+     * Aspell handles are not safe to share between threads
+     * @return false
+     */
+    public boolean isShareable()
+    {
+        return false;
+    }
+    public void cleanup()
+    {
+        speller.cleanup();
+    }
+}
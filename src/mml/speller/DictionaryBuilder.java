@@ -0,0 +1,142 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Build a dictionary file for MappedSpeller from a list of words, one 
+ * per line, e.g. the output of "aspell -d en_GB dump master | aspell -l 
+ * en_GB expand | tr ' ' '\n'". Anything after a '/' (affix flags) is 
+ * dropped. The file is a magic string, the word count, a table of 
+ * offsets and then the words in UTF-8, sorted bytewise.
+ * @author desmond
+ */
+public class DictionaryBuilder
+{
+    /**
+     * Compare UTF-8 byte arrays as unsigned bytes
+     */
+    static class ByteOrder implements Comparator<byte[]>
+    {
+        public int compare( byte[] a, byte[] b )
+        {
+            int n = Math.min( a.length, b.length );
+            for ( int i=0;i<n;i++ )
+            {
+                int x = a[i]&0xff;
+                int y = b[i]&0xff;
+                if ( x != y )
+                    return x-y;
+            }
+            return a.length-b.length;
+        }
+    }
+    /**
+     * Read the word list
+     * @param src the path to the word list
+     * @return the words in UTF-8, sorted and without duplicates
+     */
+    static ArrayList<byte[]> readWords( String src ) throws Exception
+    {
+        ArrayList<byte[]> words = new ArrayList<byte[]>();
+        BufferedReader br = new BufferedReader( new InputStreamReader(
+            new FileInputStream(src), MappedSpeller.UTF8) );
+        try
+        {
+            String line;
+            while ( (line=br.readLine()) != null )
+            {
+                int slash = line.indexOf('/');
+                if ( slash != -1 )
+                    line = line.substring(0,slash);
+                line = line.trim();
+                if ( line.length() > 0 )
+                    words.add( line.getBytes(MappedSpeller.UTF8) );
+            }
+        }
+        finally
+        {
+            br.close();
+        }
+        ByteOrder order = new ByteOrder();
+        Collections.sort( words, order );
+        ArrayList<byte[]> unique = new ArrayList<byte[]>( words.size() );
+        for ( int i=0;i<words.size();i++ )
+        {
+            if ( i==0 || order.compare(words.get(i-1),words.get(i)) != 0 )
+                unique.add( words.get(i) );
+        }
+        return unique;
+    }
+    /**
+     * Write out the dictionary
+     * @param words the sorted unique words
+     * @param dst the path of the dictionary file
+     */
+    static void write( ArrayList<byte[]> words, String dst ) throws Exception
+    {
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+            new FileOutputStream(dst)) );
+        try
+        {
+            out.write( MappedSpeller.MAGIC.getBytes(MappedSpeller.UTF8) );
+            out.writeInt( words.size() );
+            int offset = 0;
+            for ( int i=0;i<words.size();i++ )
+            {
+                out.writeInt( offset );
+                offset += words.get(i).length;
+            }
+            out.writeInt( offset );
+            for ( int i=0;i<words.size();i++ )
+                out.write( words.get(i) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    public static void main( String[] args )
+    {
+        if ( args.length != 2 )
+            System.out.println("usage: java mml.speller.DictionaryBuilder "
+                +"<word-list> <lang>.dict");
+        else
+        {
+            try
+            {
+                ArrayList<byte[]> words = readWords( args[0] );
+                write( words, args[1] );
+                System.out.println("wrote "+words.size()+" words to "+args[1]);
+            }
+            catch ( Exception e )
+            {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+}
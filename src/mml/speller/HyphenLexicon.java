@@ -0,0 +1,252 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connection;
+import calliope.core.database.Connector;
+import calliope.core.exception.DbException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Hyphen decisions already made by editors, learned from stored corcode. 
+ * Consulted before the speller so that the same word pair always gets 
+ * the same answer.
+ * @author desmond
+ */
+public class HyphenLexicon
+{
+    /** prefix of the lexicon docids in the misc collection */
+    static final String DOCID_PREFIX = "hyphens/";
+    static final ConcurrentHashMap<String,HyphenLexicon> lexicons = 
+        new ConcurrentHashMap<String,HyphenLexicon>();
+    /** word pairs to true if hard, false if soft */
+    HashMap<String,Boolean> pairs;
+    String lang;
+    HyphenLexicon( String lang )
+    {
+        this.lang = lang;
+        this.pairs = new HashMap<String,Boolean>();
+    }
+    /**
+     * Get the lexicon for a language, loading it the first time
+     * @param lang the language code
+     * @return the lexicon, empty if none has been built
+     */
+    public static HyphenLexicon forLanguage( String lang )
+    {
+        HyphenLexicon lex = lexicons.get( lang );
+        if ( lex == null )
+        {
+            lex = load( lang );
+            HyphenLexicon prev = lexicons.putIfAbsent( lang, lex );
+            if ( prev != null )
+                lex = prev;
+        }
+        return lex;
+    }
+    /**
+     * Replace the lexicon in use for a language
+     * @param lex the new lexicon
+     */
+    static void install( HyphenLexicon lex )
+    {
+        lexicons.put( lex.lang, lex );
+    }
+    /**
+     * Make a key for a word pair
+     * @param last the word before the hyphen
+     * @param next the word after it
+     * @return a single key
+     */
+    static String key( String last, String next )
+    {
+        return last+"\u0000"+next;
+    }
+    /**
+     * What did editors decide for this pair?
+     * @param last the word before the hyphen
+     * @param next the word after it
+     * @return true if hard, false if soft, null if never decided
+     */
+    public Boolean lookup( String last, String next )
+    {
+        return pairs.get( key(last,next) );
+    }
+    void put( String last, String next, boolean hard )
+    {
+        pairs.put( key(last,next), hard );
+    }
+    public int size()
+    {
+        return pairs.size();
+    }
+    /**
+     * Remove leading and trailing punctuation from a hyphenated half-word
+     * @param input the raw string
+     * @param leading true if this is the first word of a hyphenated pair
+     * @return the trimmed string
+     */
+    public static String clean( String input, boolean leading )
+    {
+        int start = 0;
+        while ( start < input.length() )
+            if ( !Character.isLetter(input.charAt(start)) )
+                start++;
+            else
+                break;
+        int end = input.length()-1;
+        while ( end >= 0 )
+            if ( !Character.isLetter(input.charAt(end)) )
+                end--;
+            else
+                break;
+        // reset start or end after internal punctuation
+        if ( leading )
+        {
+            for ( int i=start;i<=end;i++ )
+            {
+                if ( !Character.isLetter(input.charAt(i)) )
+                    start = i+1;
+            }
+        }
+        else
+        {
+            for ( int i=end;i>=start;i-- )
+            {
+                if ( !Character.isLetter(input.charAt(i)) )
+                    end = i-1;
+            }
+        }
+        return (start<=end)?input.substring(start,end+1):"";
+    }
+    /**
+     * Get the word after a hyphen, as both the save and the lexicon 
+     * build read it. Leading spaces and milestones are skipped, but the 
+     * word must be on the same line: a hyphen at the end of a line or 
+     * paragraph has no next word.
+     * @param text the text
+     * @param pos the offset just after the hyphen
+     * @param ms the milestones in text as start and end offsets, in order
+     * @param m the index in ms of the first milestone that may lie ahead
+     * @return the word (maybe empty)
+     */
+    public static String wordAfter( CharSequence text, int pos, int[] ms, 
+        int m )
+    {
+        StringBuilder word = new StringBuilder();
+        while ( pos < text.length() )
+        {
+            while ( m < ms.length && ms[m+1] <= pos )
+                m += 2;
+            if ( m < ms.length && ms[m] <= pos )
+                pos = ms[m+1];
+            else if ( text.charAt(pos) == '\n' )
+                break;
+            else if ( Character.isWhitespace(text.charAt(pos)) )
+            {
+                if ( word.length() > 0 )
+                    break;
+                pos++;
+            }
+            else
+                word.append( text.charAt(pos++) );
+        }
+        return word.toString();
+    }
+    /**
+     * Write the lexicon compactly: one "H|S last next" line per pair
+     * @return the lexicon as text
+     */
+    String toBody()
+    {
+        StringBuilder sb = new StringBuilder();
+        Iterator<Map.Entry<String,Boolean>> iter = pairs.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<String,Boolean> e = iter.next();
+            sb.append( e.getValue().booleanValue()?'H':'S' );
+            sb.append( ' ' );
+            sb.append( e.getKey().replace('\u0000',' ') );
+            sb.append( '\n' );
+        }
+        return sb.toString();
+    }
+    /**
+     * Read a lexicon written by toBody
+     * @param lang its language
+     * @param body the text of the lexicon
+     * @return the lexicon
+     */
+    static HyphenLexicon fromBody( String lang, String body )
+    {
+        HyphenLexicon lex = new HyphenLexicon( lang );
+        String[] lines = body.split("\n");
+        for ( int i=0;i<lines.length;i++ )
+        {
+            String[] parts = lines[i].split(" ");
+            if ( parts.length == 3 )
+                lex.put( parts[1], parts[2], parts[0].equals("H") );
+        }
+        return lex;
+    }
+    /**
+     * Load a lexicon from the database
+     * @param lang the language code
+     * @return the lexicon or an empty one if it isn't there
+     */
+    static HyphenLexicon load( String lang )
+    {
+        try
+        {
+            Connection conn = Connector.getConnection();
+            String res = conn.getFromDb( Database.MISC, DOCID_PREFIX+lang );
+            if ( res != null )
+            {
+                JSONObject jObj = (JSONObject)JSONValue.parse(res);
+                String body = (String)jObj.get(JSONKeys.BODY);
+                if ( body != null )
+                    return fromBody( lang, body );
+            }
+        }
+        catch ( DbException e )
+        {
+            System.out.println("No hyphen lexicon for "+lang+": "
+                +e.getMessage());
+        }
+        return new HyphenLexicon( lang );
+    }
+    /**
+     * Save the lexicon to the database
+     * @throws DbException 
+     */
+    void save() throws DbException
+    {
+        JSONObject jObj = new JSONObject();
+        jObj.put( JSONKeys.BODY, toBody() );
+        jObj.put( JSONKeys.LANGUAGE, lang );
+        Connector.getConnection().putToDb( Database.MISC, 
+            DOCID_PREFIX+lang, jObj.toJSONString() );
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+import calliope.core.Utils;
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connection;
+import calliope.core.database.Connector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import mml.handler.json.Dialect;
+import mml.handler.scratch.ScratchVersion;
+import mml.handler.scratch.ScratchVersionSet;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Periodically scan the stored corcode and cortex for hyphens editors 
+ * have already classified, and save what they decided, per language, 
+ * as a HyphenLexicon
+ * @author desmond
+ */
+public class LexiconBuilder implements Runnable
+{
+    /** how often to rebuild the lexicons */
+    static final long PERIOD = 24*3600000L;
+    /** votes per language: pair key to {hard,soft} counts */
+    HashMap<String,HashMap<String,int[]>> votes;
+    /** languages of works already looked up, by short docid */
+    HashMap<String,String> languages;
+    /**
+     * Build the lexicons now, in the background, and then once a day
+     */
+    public static void schedule()
+    {
+        ScheduledExecutorService timer = 
+            Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "mml-lexicon" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            });
+        timer.scheduleWithFixedDelay( new LexiconBuilder(), 0, PERIOD, 
+            TimeUnit.MILLISECONDS );
+    }
+    /**
+     * Rebuild the lexicons once
+     */
+    public void run()
+    {
+        try
+        {
+            build();
+        }
+        catch ( Exception e )
+        {
+            // an exception would cancel the later builds
+            System.out.println("Lexicon build failed: "+e.getMessage());
+        }
+    }
+    /**
+     * Get the language of a work from its dialect
+     * @param docid the cortex docid
+     * @return the language code or null
+     */
+    String languageOf( String docid )
+    {
+        String[] parts = docid.split("/");
+        String shortID = (parts.length<=3)?docid
+            :parts[0]+"/"+parts[1]+"/"+parts[2];
+        if ( !languages.containsKey(shortID) )
+        {
+            String lang = null;
+            try
+            {
+                String dialect = Dialect.getDialect( shortID, null );
+                JSONObject jObj = (JSONObject)JSONValue.parse(dialect);
+                lang = (String)jObj.get("language");
+            }
+            catch ( Exception e )
+            {
+                // no dialect: can't tell which language
+            }
+            languages.put( shortID, lang );
+        }
+        return languages.get( shortID );
+    }
+    /**
+     * Scan all the corcode and rewrite the lexicons
+     * @throws Exception 
+     */
+    public void build() throws Exception
+    {
+        votes = new HashMap<String,HashMap<String,int[]>>();
+        languages = new HashMap<String,String>();
+        Connection conn = Connector.getConnection();
+        String[] docids = conn.listCollection( Database.CORCODE );
+        for ( int i=0;i<docids.length;i++ )
+        {
+            if ( !docids[i].endsWith("/default") )
+                continue;
+            String docid = Utils.chomp( docids[i] );
+            String lang = languageOf( docid );
+            if ( lang == null )
+                continue;
+            String cc = conn.getFromDb( Database.CORCODE, docids[i] );
+            String ct = conn.getFromDb( Database.CORTEX, docid );
+            // milestones, which the next word skips, if there are any
+            String pc = conn.getFromDb( Database.CORCODE, docid+"/pages" );
+            if ( cc != null && ct != null )
+            {
+                try
+                {
+                    scan( new ScratchVersionSet(ct,Database.CORTEX),
+                        new ScratchVersionSet(cc,Database.CORCODE), 
+                        (pc!=null)?new ScratchVersionSet(pc,Database.CORCODE)
+                        :null, lang );
+                }
+                catch ( Exception e )
+                {
+                    System.out.println("Skipping "+docid+": "+e.getMessage());
+                }
+            }
+        }
+        Iterator<String> iter = votes.keySet().iterator();
+        while ( iter.hasNext() )
+        {
+            String lang = iter.next();
+            HyphenLexicon lex = tally( lang, votes.get(lang) );
+            lex.save();
+            HyphenLexicon.install( lex );
+            System.out.println("Hyphen lexicon for "+lang+" has "
+                +lex.size()+" pairs");
+        }
+    }
+    /**
+     * Collect the hyphen decisions in every layer of a work
+     * @param texts the cortex versions
+     * @param markup the matching corcode versions
+     * @param pages the matching page milestones or null
+     * @param lang the language of the work
+     */
+    void scan( ScratchVersionSet texts, ScratchVersionSet markup, 
+        ScratchVersionSet pages, String lang )
+    {
+        HashMap<String,ScratchVersion> byName = 
+            new HashMap<String,ScratchVersion>();
+        ScratchVersion[] tList = texts.getVersions();
+        for ( int i=0;i<tList.length;i++ )
+            byName.put( tList[i].getVersion(), tList[i] );
+        HashMap<String,ScratchVersion> pagesByName = 
+            new HashMap<String,ScratchVersion>();
+        ScratchVersion[] pList = (pages!=null)?pages.getVersions()
+            :new ScratchVersion[0];
+        for ( int i=0;i<pList.length;i++ )
+            pagesByName.put( pList[i].getVersion(), pList[i] );
+        ScratchVersion[] mList = markup.getVersions();
+        for ( int i=0;i<mList.length;i++ )
+        {
+            ScratchVersion text = byName.get( mList[i].getVersion() );
+            if ( text == null )
+                continue;
+            ScratchVersion page = pagesByName.get( mList[i].getVersion() );
+            int[] layers = mList[i].getLayerNumbers();
+            for ( int j=0;j<layers.length;j++ )
+            {
+                String t = text.getLayerString( layers[j] );
+                String m = mList[i].getLayerString( layers[j] );
+                String p = (page!=null)?page.getLayerString(layers[j]):null;
+                if ( t != null && m != null )
+                    scanLayer( t, m, milestones(p), lang );
+            }
+        }
+    }
+    /**
+     * Read the milestones of a layer
+     * @param stil the STIL pages markup or null
+     * @return their start and end offsets, in order
+     */
+    static int[] milestones( String stil )
+    {
+        JSONObject jObj = (stil!=null)?(JSONObject)JSONValue.parse(stil):null;
+        JSONArray ranges = (jObj!=null)?(JSONArray)jObj.get(JSONKeys.RANGES)
+            :null;
+        if ( ranges == null )
+            return new int[0];
+        int[] ms = new int[ranges.size()*2];
+        int offset = 0;
+        for ( int i=0;i<ranges.size();i++ )
+        {
+            JSONObject r = (JSONObject)ranges.get(i);
+            offset += ((Number)r.get(JSONKeys.RELOFF)).intValue();
+            ms[i*2] = offset;
+            ms[i*2+1] = offset+((Number)r.get(JSONKeys.LEN)).intValue();
+        }
+        return ms;
+    }
+    /**
+     * Record the hyphens in one layer
+     * @param text the plain text
+     * @param stil the STIL markup for the text
+     * @param ms the milestones in the text as start and end offsets
+     * @param lang the language of the text
+     */
+    void scanLayer( String text, String stil, int[] ms, String lang )
+    {
+        JSONObject jObj = (JSONObject)JSONValue.parse( stil );
+        if ( jObj == null )
+            return;
+        JSONArray ranges = (JSONArray)jObj.get( JSONKeys.RANGES );
+        if ( ranges == null )
+            return;
+        HashMap<String,int[]> counts = votes.get( lang );
+        if ( counts == null )
+        {
+            counts = new HashMap<String,int[]>();
+            votes.put( lang, counts );
+        }
+        int offset = 0;
+        int m = 0;
+        for ( int i=0;i<ranges.size();i++ )
+        {
+            JSONObject r = (JSONObject)ranges.get(i);
+            offset += ((Number)r.get(JSONKeys.RELOFF)).intValue();
+            while ( m < ms.length && ms[m+1] <= offset )
+                m += 2;
+            String name = (String)r.get(JSONKeys.NAME);
+            boolean hard = "hard-hyphen".equals(name);
+            if ( hard || "soft-hyphen".equals(name) )
+            {
+                int len = ((Number)r.get(JSONKeys.LEN)).intValue();
+                String last = HyphenLexicon.clean(wordBefore(text,offset),true);
+                String next = HyphenLexicon.clean(HyphenLexicon.wordAfter(
+                    text,offset+len,ms,m),false);
+                if ( last.length()>0 && next.length()>0 )
+                {
+                    String key = HyphenLexicon.key( last, next );
+                    int[] c = counts.get( key );
+                    if ( c == null )
+                    {
+                        c = new int[2];
+                        counts.put( key, c );
+                    }
+                    c[hard?0:1]++;
+                }
+            }
+        }
+    }
+    /**
+     * Get the word ending at pos
+     * @param text the text
+     * @param pos the offset just after the word
+     * @return the word
+     */
+    static String wordBefore( String text, int pos )
+    {
+        pos = Math.min( pos, text.length() );
+        int i = pos;
+        while ( i > 0 && !Character.isWhitespace(text.charAt(i-1)) )
+            i--;
+        return text.substring( i, pos );
+    }
+    /**
+     * Turn the votes into a lexicon. Pairs with a tie are left out.
+     * @param lang the language
+     * @param counts the hard and soft votes for each pair
+     * @return the lexicon
+     */
+    HyphenLexicon tally( String lang, HashMap<String,int[]> counts )
+    {
+        HyphenLexicon lex = new HyphenLexicon( lang );
+        Iterator<Map.Entry<String,int[]>> iter = counts.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<String,int[]> e = iter.next();
+            int[] c = e.getValue();
+            if ( c[0] != c[1] )
+                lex.pairs.put( e.getKey(), c[0]>c[1] );
+        }
+        return lex;
+    }
+}
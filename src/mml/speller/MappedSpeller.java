@@ -0,0 +1,256 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import mml.exception.MMLException;
+
+/**
+ * Pure Java speller that looks words up in a sorted word list mapped 
+ * into memory. The list is made offline by DictionaryBuilder.
+ * @author desmond
+ */
+public class MappedSpeller implements Speller
+{
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    /** start of a dictionary file */
+    static final String MAGIC = "MMLDICT1";
+    MappedByteBuffer buf;
+    /** number of words */
+    int nWords;
+    /** where the offset table starts */
+    int table;
+    /** where the word data starts */
+    int data;
+    /** compounds that still take a hard hyphen, or null if none */
+    HashSet<String> exceptions;
+    /** compounds hyphenated even though they are words, by language. 
+     * The same table as AeseSpeller's: Italian doesn't use hyphenated 
+     * words much, and the default rule works well elsewhere */
+    static final String[] it_exceptions = {};
+    static final HashMap<String,HashSet<String>> compounds;
+    static
+    {
+        compounds = new HashMap<String,HashSet<String>>();
+        HashSet<String> italian = new HashSet<String>();
+        for ( String comp: it_exceptions )
+            italian.add(comp);
+        compounds.put( "it", italian );
+        // load other language exceptions here
+    }
+    /**
+     * Map a dictionary file
+     * @param dict the file made by DictionaryBuilder
+     * @param lang the language code e.g. "en_GB"
+     * @throws MMLException if it wasn't a dictionary
+     */
+    public MappedSpeller( File dict, String lang ) throws MMLException
+    {
+        this.exceptions = compounds.get( lang );
+        if ( exceptions == null && lang.indexOf('_') > 0 )
+            exceptions = compounds.get( lang.substring(0,lang.indexOf('_')) );
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile( dict, "r" );
+            try
+            {
+                FileChannel fc = raf.getChannel();
+                buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+            }
+            finally
+            {
+                raf.close();
+            }
+            byte[] magic = new byte[MAGIC.length()];
+            buf.get( magic );
+            if ( !MAGIC.equals(new String(magic,UTF8)) )
+                throw new MMLException(dict.getName()+" is not a dictionary");
+            nWords = buf.getInt();
+            table = buf.position();
+            data = table + (nWords+1)*4;
+        }
+        catch ( IOException e )
+        {
+            throw new MMLException( e );
+        }
+    }
+    /**
+     * Find the dictionary for a language in a directory
+     * @param dir the directory holding <lang>.dict files
+     * @param lang the language code e.g. "en_GB"
+     * @return the dictionary file
+     * @throws MMLException if there is none for lang or its base language
+     */
+    public static File dictFor( String dir, String lang ) throws MMLException
+    {
+        File f = new File( dir, lang+".dict" );
+        if ( !f.exists() && lang.indexOf('_') > 0 )
+            f = new File( dir, lang.substring(0,lang.indexOf('_'))+".dict" );
+        if ( !f.exists() )
+            throw new MMLException("No dictionary for "+lang+" in "+dir);
+        return f;
+    }
+    /**
+     * Compare a key with word i in the list, as unsigned bytes
+     * @param key the UTF-8 bytes of the word sought
+     * @param i the index of the word in the list
+     * @return &lt;0, 0 or &gt;0 like compareTo
+     */
+    private int compare( byte[] key, int i )
+    {
+        int start = data+buf.getInt(table+i*4);
+        int len = data+buf.getInt(table+(i+1)*4)-start;
+        int n = Math.min( len, key.length );
+        for ( int j=0;j<n;j++ )
+        {
+            int a = key[j]&0xff;
+            int b = buf.get(start+j)&0xff;
+            if ( a != b )
+                return a-b;
+        }
+        return key.length-len;
+    }
+    /**
+     * Binary search for an exact match
+     * @param word the word
+     * @return true if it is in the list
+     */
+    private boolean contains( String word )
+    {
+        byte[] key = word.getBytes( UTF8 );
+        int bottom = 0;
+        int top = nWords-1;
+        while ( bottom <= top )
+        {
+            int mid = (bottom+top)>>>1;
+            int res = compare( key, mid );
+            if ( res == 0 )
+                return true;
+            else if ( res < 0 )
+                top = mid-1;
+            else
+                bottom = mid+1;
+        }
+        return false;
+    }
+    /**
+     * Is the word in our dictionary? Like aspell, accept capitalised or 
+     * all-capital forms of lower-case entries.
+     * @param word the word to look up
+     * @return true if it is
+     */
+    public boolean hasWord( String word )
+    {
+        if ( word.length()==0 )
+            return false;
+        else if ( contains(word) )
+            return true;
+        else
+        {
+            String lower = word.toLowerCase();
+            if ( lower.equals(word) )
+                return false;
+            else if ( word.equals(word.toUpperCase()) )
+            {
+                String cap = word.substring(0,1)+lower.substring(1);
+                return contains(lower) || contains(cap);
+            }
+            else if ( word.substring(1).equals(lower.substring(1)) )
+                return contains(lower);
+            else
+                return false;
+        }
+    }
+    /**
+     * Is a compound listed as taking a hard hyphen even though it is a word?
+     * @param compound the two halves joined
+     * @return true if it is in the exceptions table
+     */
+    private boolean isException( String compound )
+    {
+        return exceptions != null && exceptions.contains( compound );
+    }
+    /**
+     * Should we hard-hyphenate two words or part-words? We require:
+     * 1. The leading and trailing halves of the "word" are also words
+     * 2. The compound of the two halves is *not* a word
+     * 3. Or, the compound is a word but is listed in the exceptions table
+     * @param last the previous 'word'
+     * @param next the word on the next line
+     * @return true for a hard hyphen else soft
+     */
+    public boolean isHardHyphen( String last, String next )
+    {
+        String compound = last+next;
+        return hasWord(last) && hasWord(next) 
+            && (!hasWord(compound)||isException(compound));
+    }
+    /**
+     * Decide a batch of hyphens, looking each distinct word up only once
+     * @param last the previous 'words', one per hyphen
+     * @param next the words on the next lines, one per hyphen
+     * @return an array of answers, true for hard hyphens
+     */
+    public boolean[] areHardHyphens( String[] last, String[] next )
+    {
+        HashMap<String,Boolean> known = new HashMap<String,Boolean>();
+        boolean[] res = new boolean[last.length];
+        for ( int i=0;i<last.length;i++ )
+        {
+            String compound = last[i]+next[i];
+            res[i] = lookup(known,last[i]) && lookup(known,next[i]) 
+                && (!lookup(known,compound)||isException(compound));
+        }
+        return res;
+    }
+    /**
+     * Look up a word via a table of words already looked up
+     * @param known the words looked up so far in this batch
+     * @param word the word to look up
+     * @return true if it is in the dictionary
+     */
+    private boolean lookup( HashMap<String,Boolean> known, String word )
+    {
+        Boolean res = known.get( word );
+        if ( res == null )
+        {
+            res = hasWord( word );
+            known.put( word, res );
+        }
+        return res;
+    }
+    /**
+     * Read-only lookups need no locking
+     * @return true
+     */
+    public boolean isShareable()
+    {
+        return true;
+    }
+    public void cleanup()
+    {
+        // the mapping goes when the buffer is collected
+    }
+}
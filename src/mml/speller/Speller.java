@@ -0,0 +1,55 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+/**
+ * Something that can tell if a word is in a language's dictionary
+ * @author desmond
+ */
+public interface Speller
+{
+    /**
+     * Is the word in our dictionary?
+     * @param word the word to look up
+     * @return true if it is
+     */
+    boolean hasWord( String word );
+    /**
+     * Should we hard-hyphenate two words or part-words?
+     * @param last the previous 'word'
+     * @param next the word on the next line
+     * @return true for a hard hyphen else soft
+     */
+    boolean isHardHyphen( String last, String next );
+    /**
+     * Decide a whole document's worth of hyphens at once
+     * @param last the previous 'words', one per hyphen
+     * @param next the words on the next lines, one per hyphen
+     * @return an array of answers, true for hard hyphens
+     */
+    boolean[] areHardHyphens( String[] last, String[] next );
+    /**
+     * Can one instance be used by several threads at once?
+     * @return true if it can
+     */
+    boolean isShareable();
+    /**
+     * Free any resources. The speller can't be used after this.
+     */
+    void cleanup();
+}
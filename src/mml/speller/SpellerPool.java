@@ -0,0 +1,269 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mml.exception.MMLException;
+
+/**
+ * Keep initialised spellers for each language so that saves don't 
+ * have to load the dictionary every time
+ * @author desmond
+ */
+public class SpellerPool
+{
+    /** use the native aspell library */
+    public static final String ASPELL = "aspell";
+    /** use memory-mapped word lists made by DictionaryBuilder */
+    public static final String MAPPED = "mapped";
+    /** which kind of speller to make */
+    public static String backend = ASPELL;
+    /** directory of &lt;lang&gt;.dict files for the mapped backend */
+    public static String dictionaries = "/usr/local/share/mml/dicts";
+    /** most spellers kept per language */
+    public static int maxPerLanguage = 4;
+    /** how long to wait for a busy speller in seconds */
+    static final long WAIT_SECS = 30;
+    /** answers already given, for all languages */
+    static final WordCache cache = new WordCache( 100000 );
+    static final ConcurrentHashMap<String,Pool> pools = 
+        new ConcurrentHashMap<String,Pool>();
+    /**
+     * Make a new speller of the configured kind
+     * @param lang the language code
+     * @return an initialised speller
+     * @throws Exception if the dictionary could not be loaded
+     */
+    static Speller create( String lang ) throws Exception
+    {
+        if ( MAPPED.equals(backend) )
+            return new MappedSpeller( MappedSpeller.dictFor(dictionaries,lang), 
+                lang );
+        else if ( ASPELL.equals(backend) )
+            return new AspellSpeller( lang );
+        else
+            throw new MMLException("Unknown speller "+backend);
+    }
+    /**
+     * The spellers for one language
+     */
+    static class Pool
+    {
+        String lang;
+        int max;
+        ArrayBlockingQueue<Speller> idle;
+        AtomicInteger created;
+        /** the one instance if it can be shared between threads */
+        volatile Speller shared;
+        Pool( String lang )
+        {
+            this.lang = lang;
+            this.max = Math.max(1,maxPerLanguage);
+            this.idle = new ArrayBlockingQueue<Speller>(max);
+            this.created = new AtomicInteger();
+        }
+        /**
+         * Get an idle speller, make a new one, or wait for one
+         * @return an initialised speller
+         */
+        Speller take() throws Exception
+        {
+            if ( shared != null )
+                return shared;
+            Speller s = idle.poll();
+            if ( s == null )
+            {
+                if ( created.incrementAndGet() <= max )
+                {
+                    try
+                    {
+                        s = create( lang );
+                    }
+                    catch ( Exception e )
+                    {
+                        created.decrementAndGet();
+                        throw e;
+                    }
+                    if ( s.isShareable() )
+                        shared = s;
+                }
+                else
+                {
+                    created.decrementAndGet();
+                    s = idle.poll( WAIT_SECS, TimeUnit.SECONDS );
+                    if ( s == null )
+                        throw new MMLException("No speller free for "+lang);
+                }
+            }
+            return s;
+        }
+        void give( Speller s )
+        {
+            if ( s == shared )
+                return;
+            else if ( !idle.offer(s) )
+            {
+                created.decrementAndGet();
+                s.cleanup();
+            }
+        }
+    }
+    /**
+     * Borrow a speller for a language. Call release() when done.
+     * @param lang the language code e.g. "en_GB"
+     * @return a pooled speller
+     * @throws Exception if the dictionary could not be loaded
+     */
+    public static PooledSpeller lease( String lang ) throws Exception
+    {
+        Pool p = pools.get( lang );
+        if ( p == null )
+        {
+            Pool fresh = new Pool( lang );
+            p = pools.putIfAbsent( lang, fresh );
+            if ( p == null )
+                p = fresh;
+        }
+        return new PooledSpeller( p, p.take() );
+    }
+    /**
+     * A speller on loan from the pool whose answers are cached
+     */
+    public static class PooledSpeller
+    {
+        Pool pool;
+        Speller speller;
+        PooledSpeller( Pool pool, Speller speller )
+        {
+            this.pool = pool;
+            this.speller = speller;
+        }
+        /**
+         * Is the word in our dictionary?
+         * @param word the word to look up
+         * @return true if it is
+         */
+        public boolean hasWord( String word )
+        {
+            String key = WordCache.key( pool.lang, word );
+            Boolean res = cache.get( key );
+            if ( res == null )
+            {
+                res = speller.hasWord( word );
+                cache.put( key, res );
+            }
+            return res;
+        }
+        /**
+         * Should we hard-hyphenate two words or part-words?
+         * @param last the previous 'word'
+         * @param next the word on the next line
+         * @return true for a hard hyphen else soft
+         */
+        public boolean isHardHyphen( String last, String next )
+        {
+            Boolean decided = HyphenLexicon.forLanguage(pool.lang).lookup(
+                last, next );
+            if ( decided != null )
+                return decided;
+            String key = WordCache.key( pool.lang, last+"\u0000"+next );
+            Boolean res = cache.get( key );
+            if ( res == null )
+            {
+                res = speller.isHardHyphen( last, next );
+                cache.put( key, res );
+            }
+            return res;
+        }
+        /**
+         * Decide a batch of hyphens in one call to the speller. Pairs 
+         * editors have already decided come from the lexicon, those 
+         * already answered from the cache; the rest go to the speller 
+         * together, without duplicates.
+         * @param last the previous 'words', one per hyphen
+         * @param next the words on the next lines, one per hyphen
+         * @return an array of answers, true for hard hyphens
+         */
+        public boolean[] areHardHyphens( String[] last, String[] next )
+        {
+            boolean[] res = new boolean[last.length];
+            HyphenLexicon lexicon = HyphenLexicon.forLanguage( pool.lang );
+            // map each unanswered pair to the hyphens that share it
+            LinkedHashMap<String,ArrayList<Integer>> todo = 
+                new LinkedHashMap<String,ArrayList<Integer>>();
+            for ( int i=0;i<last.length;i++ )
+            {
+                String key = WordCache.key( pool.lang, 
+                    last[i]+"\u0000"+next[i] );
+                Boolean known = lexicon.lookup( last[i], next[i] );
+                if ( known == null )
+                    known = cache.get( key );
+                if ( known != null )
+                    res[i] = known;
+                else
+                {
+                    ArrayList<Integer> same = todo.get( key );
+                    if ( same == null )
+                    {
+                        same = new ArrayList<Integer>();
+                        todo.put( key, same );
+                    }
+                    same.add( i );
+                }
+            }
+            if ( !todo.isEmpty() )
+            {
+                String[] l = new String[todo.size()];
+                String[] n = new String[todo.size()];
+                int j = 0;
+                for ( ArrayList<Integer> same : todo.values() )
+                {
+                    l[j] = last[same.get(0)];
+                    n[j++] = next[same.get(0)];
+                }
+                boolean[] answers = speller.areHardHyphens( l, n );
+                j = 0;
+                for ( Map.Entry<String,ArrayList<Integer>> e : todo.entrySet() )
+                {
+                    cache.put( e.getKey(), answers[j] );
+                    for ( int k : e.getValue() )
+                        res[k] = answers[j];
+                    j++;
+                }
+            }
+            return res;
+        }
+        /**
+         * Give the speller back to the pool. Don't use it after this.
+         */
+        public void release()
+        {
+            if ( speller != null )
+            {
+                pool.give( speller );
+                speller = null;
+            }
+        }
+    }
+}
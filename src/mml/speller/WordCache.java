@@ -0,0 +1,132 @@
+/*
+ * This file is part of MML.
+ *
+ *  MML is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  MML is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with MML.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2016
+ */
+package mml.speller;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded cache of dictionary answers, shared by all threads. Lookups 
+ * take no lock. Eviction is approximately least-recently-used: once the 
+ * cache is full one thread sweeps it, dropping the entries not used since 
+ * the last sweep, as in the clock algorithm.
+ * @author desmond
+ */
+public class WordCache
+{
+    /** an answer and whether it has been used since the last sweep */
+    static class Entry
+    {
+        final boolean value;
+        volatile boolean used;
+        Entry( boolean value )
+        {
+            this.value = value;
+        }
+    }
+    ConcurrentHashMap<String,Entry> map;
+    /** the most entries to keep */
+    int capacity;
+    /** number of entries, kept here because size() is slow */
+    AtomicInteger size;
+    /** true while a thread is sweeping */
+    AtomicBoolean sweeping;
+    /**
+     * Create a cache
+     * @param capacity the most entries to keep before dropping old ones
+     */
+    public WordCache( int capacity )
+    {
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<String,Entry>( capacity/4, 0.75f, 
+            Runtime.getRuntime().availableProcessors()*2 );
+        this.size = new AtomicInteger();
+        this.sweeping = new AtomicBoolean();
+    }
+    /**
+     * Make a key for a word in a language
+     * @param lang the language code
+     * @param word the word or words
+     * @return a single key
+     */
+    public static String key( String lang, String word )
+    {
+        return lang+"\u0000"+word;
+    }
+    /**
+     * Look up a previous answer
+     * @param key the key from key()
+     * @return the answer or null if not known
+     */
+    public Boolean get( String key )
+    {
+        Entry e = map.get( key );
+        if ( e == null )
+            return null;
+        // don't write the shared flag if it is already set
+        if ( !e.used )
+            e.used = true;
+        return e.value;
+    }
+    /**
+     * Remember an answer
+     * @param key the key from key()
+     * @param value the answer
+     */
+    public void put( String key, boolean value )
+    {
+        if ( map.put(key,new Entry(value)) == null 
+            && size.incrementAndGet() > capacity )
+            sweep();
+    }
+    /**
+     * Drop entries not used lately until there is room again. Other 
+     * threads don't wait: if a sweep is under way they carry on.
+     */
+    private void sweep()
+    {
+        if ( !sweeping.compareAndSet(false,true) )
+            return;
+        try
+        {
+            // leave some room so we don't sweep on every put
+            int target = capacity-capacity/8;
+            while ( size.get() > target )
+            {
+                Iterator<Entry> iter = map.values().iterator();
+                while ( iter.hasNext() && size.get() > target )
+                {
+                    Entry e = iter.next();
+                    if ( e.used )
+                        e.used = false;
+                    else
+                    {
+                        iter.remove();
+                        size.decrementAndGet();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            sweeping.set( false );
+        }
+    }
+}
@@ -21,7 +21,7 @@ package mml.test;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import mml.exception.*;
-import mml.handler.get.MMLGetMMLHandler;
+import mml.handler.json.Dialect;
 import html.*;
 import java.io.File;
 import java.io.FileInputStream;
@@ -430,7 +430,7 @@ public class Editor extends Test
         head.addScriptFile( "/mml/static/js/tiny.editor.js" );
         head.addScriptFile( "/mml/static/js/annotate.js");
         head.addScriptFile( "/mml/static/js/mml.js" );
-        String dialect = MMLGetMMLHandler.getDialect(shortID(),version1);
+        String dialect = Dialect.getDialect(shortID(),version1);
         String opts = getOpts(docid,version1);
         StringBuilder js = new StringBuilder();
         js.append(EDITOR_START_JS);
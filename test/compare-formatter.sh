@@ -0,0 +1,29 @@
+#!/bin/bash
+# Check that MMLFormatter makes the same HTML as formatter.js from 
+# each test/*.mml. Run from the top directory after building dist/MML.jar.
+getjarpaths()
+{
+  JARPATH=""
+  for f in $1/*.jar
+  do
+    JARPATH="$JARPATH:$f"
+  done
+  echo $JARPATH
+  return
+}
+CLASSPATH=dist/MML.jar`getjarpaths lib`
+DIALECT=${1:-test/dialect.json}
+STATUS=0
+for f in test/*.mml
+do
+  node test/format.js $DIALECT $f > /tmp/formatter-js.html
+  java -cp $CLASSPATH mml.handler.post.MMLFormatter $DIALECT $f > /tmp/formatter-java.html
+  if cmp -s /tmp/formatter-js.html /tmp/formatter-java.html; then
+    echo "$f: same"
+  else
+    echo "$f: DIFFERENT"
+    cmp /tmp/formatter-js.html /tmp/formatter-java.html
+    STATUS=1
+  fi
+done
+exit $STATUS
@@ -0,0 +1,12 @@
+// Print the HTML formatter.js makes of an MML file
+// usage: node test/format.js <dialect>.json <text>.mml
+var fs = require('fs');
+var vm = require('vm');
+var js = __dirname+'/../mml/static/js/';
+var ctx = vm.createContext({console:console});
+vm.runInContext(fs.readFileSync(js+'refloc.js','utf8'),ctx);
+vm.runInContext(fs.readFileSync(js+'formatter.js','utf8'),ctx);
+ctx.dialect = JSON.parse(fs.readFileSync(process.argv[2],'utf8'));
+ctx.text = fs.readFileSync(process.argv[3],'utf8');
+process.stdout.write(vm.runInContext(
+    'new Formatter(dialect).toHTML(text,new Array())',ctx));